@@ -0,0 +1,52 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.exports.CsvExport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+Measures rendering a CSV row of a CSV export (see CsvExport), which reads the
+submission's XML and escapes each value. The row is written to a StringBuilder
+that is reused across invocations, so the benchmark does not measure the cost
+of writing to the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvExportBenchmark {
+	@Param({"small", "wide", "repeats"})
+	private String shape;
+
+	private String xml;
+	private CsvExport export;
+	private final StringBuilder out = new StringBuilder();
+
+	@Setup
+	public void setUp() throws XMLStreamException {
+		xml = new Submissions(1).xml(shape, "benchmark", "uuid:benchmark");
+		export = new CsvExport(CsvExport.headers(xml));
+	}
+
+	@Benchmark
+	public int writeRow() throws IOException, XMLStreamException {
+		out.setLength(0);
+		export.writeRow(xml, out);
+		return out.length();
+	}
+}
@@ -0,0 +1,150 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.models.GroupCommitter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Compares committing each insert separately with committing concurrent inserts
+through a GroupCommitter. The database is simulated: a commit holds a single
+lock for commitMicros, like a write-ahead log that flushes one commit at a time,
+and each insert costs insertMicros within its transaction. The benchmark
+reports inserts per second and, as the commits counter, commits per second.
+Each thread inserts in a closed loop, so the mean latency of an insert is the
+number of threads divided by the inserts per second. Run main() to print a
+table of commits per second against latency for a series of group-commit
+windows:
+
+	mvn -P benchmark test-compile exec:exec@benchmark \
+		-Dbenchmark.main=org.opendatakit.thin.benchmarks.GroupCommitBenchmark
+
+The simulation measures only the GroupCommitter's batching, not
+AbstractModel.insertGroup() or a real database's commit cost, so it does not
+show that group commit helps in production. That is why GROUP_COMMIT_ENABLED
+defaults to false. To measure the real path, run LoadGenerator against a
+PostgreSQL database with and without GROUP_COMMIT_ENABLED=true.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(GroupCommitBenchmark.THREADS)
+@Fork(1)
+public class GroupCommitBenchmark {
+	static final int THREADS = 32;
+
+	@Param({"1000"})
+	private int commitMicros;
+
+	@Param({"20"})
+	private int insertMicros;
+
+	// A negative window commits each insert separately.
+	@Param({"-1", "0", "200", "1000"})
+	private int windowMicros;
+
+	private final ReentrantLock log = new ReentrantLock();
+	private GroupCommitter<Integer, Integer> committer;
+
+	// Each insert counts as its share of a commit, so that the commits counter is
+	// reported as commits per second.
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public double commits;
+	}
+
+	private static void work(long micros) {
+		if (micros > 0)
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+	}
+
+	private void commit() {
+		log.lock();
+		try {
+			work(commitMicros);
+		}
+		finally {
+			log.unlock();
+		}
+	}
+
+	// Returns the size of the batch as the result of each item.
+	private List<Integer> commitBatch(List<Integer> items) {
+		work((long) insertMicros * items.size());
+		commit();
+		return Collections.nCopies(items.size(), items.size());
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if (windowMicros >= 0) {
+			committer = new GroupCommitter<>("benchmark", this::commitBatch, 4, 100,
+				windowMicros, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		if (committer != null)
+			committer.close();
+	}
+
+	@Benchmark
+	public int insert(Counters counters) {
+		int batchSize;
+		if (committer == null) {
+			work(insertMicros);
+			commit();
+			batchSize = 1;
+		}
+		else {
+			batchSize = committer.submit(1);
+		}
+		counters.commits += 1.0 / batchSize;
+		return batchSize;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		System.out.println("window(us)  inserts/s  commits/s  latency(us)");
+		for (String window : new String[] {"-1", "0", "200", "1000"}) {
+			Options options = new OptionsBuilder()
+				.include(GroupCommitBenchmark.class.getName() + ".insert")
+				.param("windowMicros", window)
+				.build();
+			RunResult result = new Runner(options).runSingle();
+			double inserts = result.getPrimaryResult().getScore();
+			Result<?> commits = result.getSecondaryResults().get("commits");
+			System.out.printf("%10s  %9.0f  %9.0f  %11.0f%n",
+				window.equals("-1") ? "separate" : window, inserts,
+				commits != null ? commits.getScore() : Double.NaN,
+				THREADS * 1e6 / inserts);
+		}
+	}
+}
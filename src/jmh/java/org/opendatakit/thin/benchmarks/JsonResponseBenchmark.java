@@ -0,0 +1,96 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.controllers.Action;
+import org.opendatakit.thin.models.Submission;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import spark.Request;
+import spark.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Measures Action.jsonResponse() for a page of submissions, as returned by
+GetFormSubmissions without a format, and for a single submission, as returned
+by GetSubmission. The action runs without a server: its Request and Response
+are stubs that only record the response type.
+
+Like SubmissionBenchmark, this benchmark requires DATABASE_URL to be set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonResponseBenchmark {
+	@Param({"small", "wide", "repeats"})
+	private String shape;
+
+	@Param({"100"})
+	private int pageSize;
+
+	private static class StubResponse extends Response {
+		private String type;
+
+		@Override
+		public void type(String contentType) {
+			type = contentType;
+		}
+
+		@Override
+		public String type() {
+			return type;
+		}
+	}
+
+	private static class JsonAction extends Action {
+		private final Object body;
+
+		JsonAction(Object body) {
+			super(new Request() { }, new StubResponse());
+			this.body = body;
+		}
+
+		@Override
+		public String body() {
+			return jsonResponse(body);
+		}
+	}
+
+	private List<Submission> page;
+	private Submission single;
+
+	@Setup
+	public void setUp() {
+		Submissions submissions = new Submissions(1);
+		page = new ArrayList<>(pageSize);
+		for (int i = 0; i < pageSize; i++) {
+			Submission submission = new Submission();
+			submission.setXml(submissions.xml(shape, "benchmark", "uuid:" + i));
+			page.add(submission);
+		}
+		single = page.get(0);
+	}
+
+	@Benchmark
+	public String page() {
+		return new JsonAction(page).body();
+	}
+
+	@Benchmark
+	public String single() {
+		return new JsonAction(single).body();
+	}
+}
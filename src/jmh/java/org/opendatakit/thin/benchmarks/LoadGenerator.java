@@ -0,0 +1,384 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.Application;
+import org.opendatakit.thin.metrics.Histogram;
+import spark.Spark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+LoadGenerator drives a running server over HTTP with a mix of requests and
+reports the throughput, latency percentiles, and error rate of each kind of
+request. It is not a JMH benchmark; run it through benchmark.main:
+
+	mvn -P benchmark test-compile exec:exec@benchmark \
+		-Dbenchmark.main=org.opendatakit.thin.benchmarks.LoadGenerator \
+		-Dbenchmark.args="--rate=500 --duration=60"
+
+With --start, LoadGenerator first starts the application in the same JVM
+through Application.main(), which requires DATABASE_URL to point to a local
+database with the submissions table. Otherwise, it sends requests to --url,
+which may be any server that implements the submission API.
+
+The arrival model is open-loop: requests are scheduled at a fixed rate (or, with
+--arrivals=poisson, with exponentially distributed gaps) regardless of how
+quickly earlier requests complete, and they wait in a queue for one of
+--connections workers. The latency of a request is measured from the time at
+which it was scheduled to be sent, not from the time at which a worker sent it,
+so time spent waiting behind slow requests counts against the server. A
+closed-loop generator would instead send fewer requests while the server is
+slow and would under-report tail latency (coordinated omission).
+
+Before the measured run, LoadGenerator creates --seed submissions of a form,
+which get, update, and export requests then target, and sends requests for
+--warmup seconds without recording them. The requests are:
+
+	create  POST /submission with a new submission of another form
+	update  PATCH /submission/:formId/:instanceId with a seeded submission
+	get     GET /submission/:formId/:instanceId of a seeded submission
+	export  GET /submission/:formId.csv of the seeded form
+
+--mix sets the relative weight of each, for example, create=4,get=5,export=1.
+A request is an error if it throws or if its status is 400 or above. If every
+response to some kind of request is a client error (4xx), the generator is
+sending requests that the server does not accept, so the results are reported
+but the run fails.
+ */
+public class LoadGenerator {
+	private static final String[] KINDS = {"create", "update", "get", "export"};
+	private static final int TIMEOUT_MILLIS = 30000;
+
+	private static class Stats {
+		final Histogram latency = new Histogram();
+		final LongAdder errors = new LongAdder();
+		final Map<Integer, LongAdder> statuses = new LinkedHashMap<>();
+	}
+
+	private final String url;
+	private final double rate;
+	private final boolean poisson;
+	private final int durationSeconds, warmupSeconds, connections, seedCount;
+	private final String shape, formId;
+	private final int[] weights = new int[KINDS.length];
+	private final Map<String, Stats> stats = new LinkedHashMap<>();
+	private final AtomicLong created = new AtomicLong();
+	private final Submissions submissions = new Submissions(1);
+	private final HttpClient client = HttpClient
+		.newBuilder()
+		.version(HttpClient.Version.HTTP_1_1)
+		.connectTimeout(Duration.ofMillis(TIMEOUT_MILLIS))
+		.build();
+	private volatile boolean recording;
+
+	private LoadGenerator(Map<String, String> options) {
+		url = option(options, "url", "http://localhost:4567");
+		rate = Double.parseDouble(option(options, "rate", "200"));
+		poisson = option(options, "arrivals", "uniform").equals("poisson");
+		durationSeconds = Integer.parseInt(option(options, "duration", "30"));
+		warmupSeconds = Integer.parseInt(option(options, "warmup", "5"));
+		connections = Integer.parseInt(option(options, "connections", "64"));
+		seedCount = Integer.parseInt(option(options, "seed", "500"));
+		shape = option(options, "shape", "small");
+		formId = option(options, "form", "loadtest-" + System.currentTimeMillis());
+		for (String part : option(options, "mix",
+			"create=4,update=2,get=3,export=1").split(",")) {
+			String[] pair = part.split("=", 2);
+			int kind = kind(pair[0].trim());
+			weights[kind] = Integer.parseInt(pair[1].trim());
+		}
+		if (rate <= 0 || connections < 1 || seedCount < 1 || durationSeconds < 1)
+			throw new IllegalArgumentException("invalid options");
+		for (String kind : KINDS)
+			stats.put(kind, new Stats());
+	}
+
+	private static int kind(String name) {
+		for (int i = 0; i < KINDS.length; i++) {
+			if (KINDS[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException("unknown request: " + name);
+	}
+
+	private static String option(Map<String, String> options, String name,
+		String defaultValue) {
+		String value = options.remove(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* requests */
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		}
+		catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	// Sends a request, reads the response, and returns the status.
+	private int send(String method, String path, String body)
+		throws IOException {
+		HttpRequest.Builder request = HttpRequest
+			.newBuilder(URI.create(url + path))
+			.timeout(Duration.ofMillis(TIMEOUT_MILLIS));
+		if (body != null) {
+			request
+				.header("Content-Type", "application/xml; charset=utf-8")
+				.method(method, HttpRequest.BodyPublishers.ofString(body,
+					StandardCharsets.UTF_8));
+		}
+		else {
+			request.method(method, HttpRequest.BodyPublishers.noBody());
+		}
+		try {
+			// The body is read to the end and discarded, so that the connection
+			// can be reused.
+			return client
+				.send(request.build(), HttpResponse.BodyHandlers.discarding())
+				.statusCode();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private String instanceId(int seed) {
+		return "uuid:seed-" + seed;
+	}
+
+	private int request(int kind) throws IOException {
+		int seed = ThreadLocalRandom.current().nextInt(seedCount);
+		switch (KINDS[kind]) {
+			case "create": {
+				String instanceId = "uuid:new-" + created.incrementAndGet();
+				String xml;
+				synchronized (submissions) {
+					xml = submissions.xml(shape, formId + "-new", instanceId);
+				}
+				return send("POST", "/submission", xml);
+			}
+			case "update": {
+				String xml;
+				synchronized (submissions) {
+					xml = submissions.xml(shape, formId, instanceId(seed));
+				}
+				return send("PATCH", "/submission/" + encode(formId) + "/" +
+					encode(instanceId(seed)), xml);
+			}
+			case "get":
+				return send("GET", "/submission/" + encode(formId) + "/" +
+					encode(instanceId(seed)), null);
+			case "export":
+				return send("GET", "/submission/" + encode(formId) + ".csv", null);
+			default:
+				throw new AssertionError();
+		}
+	}
+
+	private void record(int kind, long intended) {
+		Stats kindStats = stats.get(KINDS[kind]);
+		int status;
+		try {
+			status = request(kind);
+		}
+		catch (IOException e) {
+			status = -1;
+		}
+		long latency = System.nanoTime() - intended;
+		if (!recording)
+			return;
+		kindStats.latency.record(latency);
+		if (status < 0 || status >= 400)
+			kindStats.errors.increment();
+		synchronized (kindStats.statuses) {
+			kindStats.statuses.computeIfAbsent(status, s -> new LongAdder())
+				.increment();
+		}
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* run */
+
+	private void seed() throws IOException {
+		System.out.printf("Seeding %d submissions of form %s%n", seedCount, formId);
+		for (int i = 0; i < seedCount; i++) {
+			int status = send("POST", "/submission",
+				submissions.xml(shape, formId, instanceId(i)));
+			if (status >= 400 && status != 409)
+				throw new IOException("seeding failed with status " + status);
+		}
+	}
+
+	private int chooseKind(Random random) {
+		int total = 0;
+		for (int weight : weights)
+			total += weight;
+		int choice = random.nextInt(total);
+		for (int i = 0; i < weights.length; i++) {
+			choice -= weights[i];
+			if (choice < 0)
+				return i;
+		}
+		throw new AssertionError();
+	}
+
+	/*
+	schedule() sends requests until the deadline. Each request is scheduled at an
+	intended time, computed from the start of the run and the arrival model, and
+	is handed to the workers at that time whether or not earlier requests have
+	completed. It returns the number of requests that were scheduled.
+	 */
+	private long schedule(ExecutorService workers, long start, long deadline,
+		Random random) {
+		double meanGapNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		double offset = 0;
+		long count = 0;
+		while (true) {
+			offset += poisson ?
+				-Math.log(1 - random.nextDouble()) * meanGapNanos : meanGapNanos;
+			long intended = start + (long) offset;
+			if (intended - deadline >= 0)
+				return count;
+			long wait = intended - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+			int kind = chooseKind(random);
+			workers.execute(() -> record(kind, intended));
+			count++;
+		}
+	}
+
+	private void report(double seconds, long scheduled) {
+		System.out.printf("%nTarget rate %.0f/s, %d requests scheduled in %.0fs " +
+			"(%s arrivals, %d connections)%n%n", rate, scheduled, seconds,
+			poisson ? "poisson" : "uniform", connections);
+		System.out.println(
+			"request  count    req/s    errors  p50(ms)   p99(ms)  p999(ms)  " +
+			"max(ms)   statuses");
+		for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+			Stats kindStats = entry.getValue();
+			long count = kindStats.latency.count();
+			if (count == 0)
+				continue;
+			System.out.printf("%-7s  %6d  %7.1f  %7.2f%%  %7.1f  %8.1f  %8.1f  " +
+				"%7.1f   %s%n",
+				entry.getKey(), count, count / seconds,
+				100.0 * kindStats.errors.sum() / count,
+				kindStats.latency.percentile(50) / 1e6,
+				kindStats.latency.percentile(99) / 1e6,
+				kindStats.latency.percentile(99.9) / 1e6,
+				kindStats.latency.max() / 1e6,
+				kindStats.statuses);
+		}
+	}
+
+	// Returns the kinds of requests to which every response was a client error.
+	private List<String> rejectedKinds() {
+		List<String> rejected = new ArrayList<>();
+		for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+			Map<Integer, LongAdder> statuses = entry.getValue().statuses;
+			synchronized (statuses) {
+				if (!statuses.isEmpty() && statuses.keySet().stream()
+					.allMatch(status -> status >= 400 && status < 500))
+					rejected.add(entry.getKey());
+			}
+		}
+		return rejected;
+	}
+
+	// Runs the load and reports the results, returning false if the server
+	// rejected every request of some kind.
+	private boolean run() throws IOException, InterruptedException {
+		seed();
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(connections,
+			connections, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+		Random random = new Random(2);
+
+		System.out.printf("Warming up for %ds%n", warmupSeconds);
+		long start = System.nanoTime();
+		schedule(workers, start, start + TimeUnit.SECONDS.toNanos(warmupSeconds),
+			random);
+		while (workers.getActiveCount() > 0 || !workers.getQueue().isEmpty())
+			Thread.sleep(10);
+
+		System.out.printf("Running for %ds%n", durationSeconds);
+		recording = true;
+		start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long scheduled = schedule(workers, start, deadline, random);
+		workers.shutdown();
+		// Requests still queued at the deadline have already been waiting, so
+		// they are allowed to complete and count toward the results.
+		if (!workers.awaitTermination(2 * TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+			System.out.println("Some requests did not complete");
+		recording = false;
+		report(durationSeconds, scheduled);
+		List<String> rejected = rejectedKinds();
+		if (!rejected.isEmpty()) {
+			System.out.printf("%nEvery %s request failed with a client error%n",
+				String.join(" and ", rejected));
+			return false;
+		}
+		return true;
+	}
+
+	// Parses options of the form --name=value.
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new LinkedHashMap<>();
+		for (String arg : args) {
+			if (!arg.startsWith("--"))
+				throw new IllegalArgumentException("invalid option: " + arg);
+			String[] pair = arg.substring(2).split("=", 2);
+			options.put(pair[0], pair.length > 1 ? pair[1] : "true");
+		}
+		return options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		boolean start = Boolean.parseBoolean(option(options, "start", "false"));
+		LoadGenerator generator = new LoadGenerator(options);
+		if (!options.isEmpty()) {
+			throw new IllegalArgumentException(
+				"unknown options: " + options.keySet());
+		}
+		if (start) {
+			Application.main(new String[0]);
+			Spark.awaitInitialization();
+		}
+		boolean succeeded;
+		try {
+			succeeded = generator.run();
+		}
+		finally {
+			if (start)
+				Spark.stop();
+		}
+		System.exit(succeeded ? 0 : 1);
+	}
+}
@@ -0,0 +1,182 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.models.AbstractModel;
+import org.opendatakit.thin.models.AbstractModel.Outcome;
+import org.opendatakit.thin.models.TableMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sql2o.Connection;
+import org.sql2o.Query;
+import org.sql2o.data.Row;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+Measures the client-side work of a save. The database is replaced by StubDriver,
+whose statements do nothing, so the benchmarks measure everything else: the
+pool checkout, building or looking up the SQL, binding the parameters, and
+reading the returned row.
+
+The template benchmarks save a record through AbstractModel.create() and
+updateWhere(), which look up the SqlTemplate for the dirty columns and bind the
+values by index to a PreparedStatement. The legacy benchmarks prepare the same
+statements as AbstractModel did before SqlTemplate: they build the SQL with
+streams and a StringBuilder (legacyInsertSql() and legacyUpdateSql() are copies
+of the old code), then execute it through a Sql2o Query, which parses the named
+parameters and binds them by name.
+
+Statements are not logged (see the Fork annotation), because the query log
+would otherwise dominate both paths. Run the benchmark with the benchmark
+profile's default DATABASE_URL, stub:benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1,
+	jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class SaveOverheadBenchmark {
+	private static final TableMetadata TABLE = new TableMetadata("submissions",
+		"formId", "instanceId", "xml", "version");
+	private static final String FORM_ID = "benchmark";
+	private static final String INSTANCE_ID = "uuid:benchmark";
+	private static final String XML =
+		"<data id=\"benchmark\" instanceID=\"uuid:benchmark\"/>";
+
+	// A record of the same table as Submission that is always valid, so that a
+	// save does not parse XML
+	private static class Record extends AbstractModel {
+		@Override
+		public TableMetadata table() {
+			return TABLE;
+		}
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public Object forApi() {
+			return this;
+		}
+
+		void set(String formId, String instanceId, String xml) {
+			value("formId", formId);
+			value("instanceId", instanceId);
+			value("xml", xml);
+		}
+	}
+
+	private Record record;
+	private Map<String, Object> idKey;
+
+	@Setup
+	public void setUp() {
+		String url = System.getenv("DATABASE_URL");
+		if (url == null || !url.startsWith("stub:")) {
+			throw new IllegalStateException(
+				"DATABASE_URL must start with stub: (see StubDriver)");
+		}
+		StubDriver.register();
+		record = new Record();
+		idKey = Collections.singletonMap("id", 1L);
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* legacy */
+
+	private static boolean isInsertColumn(String name) {
+		return !name.equals("id") && !name.equals("version");
+	}
+
+	// The legacy INSERT statement
+	private static String legacyInsertSql(List<String> columns) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ")
+			.append(TABLE.name());
+		sql
+			.append(" (")
+			.append(String.join(", ", columns))
+			.append(") VALUES (:")
+			.append(String.join(", :", columns))
+			.append(')');
+		return sql.toString();
+	}
+
+	// The legacy UPDATE statement, whose key parameters are prefixed with key_
+	private static String legacyUpdateSql(List<String> columns) {
+		StringBuilder sql = new StringBuilder("UPDATE ")
+			.append(TABLE.name())
+			.append(" SET ");
+		for (String name : columns)
+			sql.append(name).append(" = :").append(name).append(", ");
+		sql.append("version = version + 1 WHERE id = :key_id");
+		return sql.toString();
+	}
+
+	private static List<String> legacyColumns() {
+		return TABLE
+			.columnNames()
+			.stream()
+			.filter(SaveOverheadBenchmark::isInsertColumn)
+			.collect(Collectors.toList());
+	}
+
+	// Executes a legacy statement with a RETURNING clause in its own
+	// transaction, as AbstractModel did, returning the returned row.
+	private static Row legacyExecute(String sql, Map<String, Object> keys) {
+		try (Connection connection = AbstractModel.transaction()) {
+			Query query = connection.createQuery(sql);
+			query.addParameter("formId", FORM_ID);
+			query.addParameter("instanceId", INSTANCE_ID);
+			query.addParameter("xml", XML);
+			if (keys != null) {
+				for (Map.Entry<String, Object> key : keys.entrySet())
+					query.addParameter("key_" + key.getKey(), key.getValue());
+			}
+			List<Row> rows = query.executeAndFetchTable().rows();
+			connection.commit();
+			return rows.isEmpty() ? null : rows.get(0);
+		}
+	}
+
+	@Benchmark
+	public Row legacyInsert() {
+		return legacyExecute(legacyInsertSql(legacyColumns()) +
+			" ON CONFLICT DO NOTHING RETURNING id, version", null);
+	}
+
+	@Benchmark
+	public Row legacyUpdate() {
+		return legacyExecute(legacyUpdateSql(legacyColumns()) +
+			" RETURNING id, version", idKey);
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* template */
+
+	@Benchmark
+	public Outcome templateInsert() {
+		record.set(FORM_ID, INSTANCE_ID, XML);
+		return record.create();
+	}
+
+	@Benchmark
+	public Outcome templateUpdate() {
+		record.set(FORM_ID, INSTANCE_ID, XML);
+		return record.updateWhere(idKey);
+	}
+}
@@ -0,0 +1,62 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.models.FakeDriver;
+
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+StubDriver is a JDBC driver whose connections do no work, so that a benchmark
+can run the real save path of AbstractModel and Sql2o, including the pool,
+without a database (see SaveOverheadBenchmark). It accepts URLs that start
+with jdbc:stub:, so the benchmark must be run with
+DATABASE_URL=stub:<anything>, which is the default of the benchmark profile.
+
+Every statement succeeds. A query returns a single row whose columns, id and
+version, are both 1, and an update or batch reports one row per statement.
+ */
+public class StubDriver extends FakeDriver {
+	private static final String[] COLUMNS = {"id", "version"};
+	private static final List<Object[]> ROWS =
+		Collections.singletonList(new Object[] {1L, 1L});
+
+	private StubDriver() {
+		super("jdbc:stub:");
+	}
+
+	// Registers the driver with DriverManager, unless it is already registered.
+	public static void register() {
+		register(new StubDriver());
+	}
+
+	@Override
+	protected PreparedStatement statement(String sql) {
+		int[] batch = {0};
+		return stub(PreparedStatement.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "executeQuery":
+				case "getGeneratedKeys":
+				case "getResultSet":
+					return resultSet(COLUMNS, ROWS);
+				case "execute":
+					return true;
+				case "executeUpdate":
+				case "getUpdateCount":
+					return 1;
+				case "addBatch":
+					batch[0]++;
+					return null;
+				case "executeBatch": {
+					int[] counts = new int[batch[0]];
+					Arrays.fill(counts, 1);
+					batch[0] = 0;
+					return counts;
+				}
+				default:
+					return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,68 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.models.Submission;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Measures the ingest path of a submission before it reaches the database:
+setXml(), which parses the XML and sets formId and instanceId from it, and
+isValid(). The submissions are generated by Submissions for each shape.
+
+Loading Submission initializes AbstractModel, which requires DATABASE_URL to be
+set, although the benchmark never connects (see the benchmark profile in
+pom.xml).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubmissionBenchmark {
+	@Param({"small", "wide", "repeats"})
+	private String shape;
+
+	private String xml;
+	private Submission parsed;
+
+	@Setup
+	public void setUp() {
+		xml = new Submissions(1).xml(shape, "benchmark", "uuid:benchmark");
+		parsed = new Submission();
+		parsed.setXml(xml);
+		if (!parsed.isValid())
+			throw new IllegalStateException("invalid submission");
+	}
+
+	@Benchmark
+	public Submission setXml() {
+		Submission submission = new Submission();
+		submission.setXml(xml);
+		return submission;
+	}
+
+	@Benchmark
+	public boolean isValid() {
+		return parsed.isValid();
+	}
+
+	// The work of Create before the insert
+	@Benchmark
+	public boolean setXmlAndValidate() {
+		Submission submission = new Submission();
+		submission.setXml(xml);
+		return submission.isValid();
+	}
+}
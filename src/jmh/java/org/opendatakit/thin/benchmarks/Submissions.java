@@ -0,0 +1,115 @@
+package org.opendatakit.thin.benchmarks;
+
+import java.util.Random;
+
+/*
+Submissions generates synthetic ODK submissions for the benchmarks. Each shape
+resembles a kind of form that ODK Collect sends:
+
+	small    A short survey: a meta block and a dozen typed fields.
+	wide     A 500-field form with no repeats, like a long census form.
+	repeats  A household form with 50 repeat groups of 8 fields each, so that
+	         many elements share the same few names.
+
+The values are deterministic for a given seed and include the characters that
+CSV and XML escaping have to handle: commas, quotes, newlines, and entities.
+ */
+public class Submissions {
+	public static final String[] SHAPES = {"small", "wide", "repeats"};
+
+	private static final String[] WORDS = {
+		"yes", "no", "maybe", "north, east", "say \"hello\"", "a & b",
+		"line one\nline two", "42", "-1.5", "2017-05-03",
+		"\u00fcn\u00efc\u00f6d\u00e9", ""
+	};
+
+	private final Random random;
+
+	public Submissions(long seed) {
+		random = new Random(seed);
+	}
+
+	private String word() {
+		return WORDS[random.nextInt(WORDS.length)];
+	}
+
+	private static void escape(String value, StringBuilder out) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '&':
+					out.append("&amp;");
+					break;
+				case '<':
+					out.append("&lt;");
+					break;
+				case '>':
+					out.append("&gt;");
+					break;
+				default:
+					out.append(c);
+			}
+		}
+	}
+
+	private void field(String name, String value, StringBuilder out) {
+		out.append('<').append(name).append('>');
+		escape(value, out);
+		out.append("</").append(name).append('>');
+	}
+
+	private void meta(String instanceId, StringBuilder out) {
+		out.append("<meta>");
+		field("instanceID", instanceId, out);
+		field("timeStart", "2017-05-03T17:27:00.000Z", out);
+		field("deviceID", "imei:" + (100000000 + random.nextInt(900000000)), out);
+		out.append("</meta>");
+	}
+
+	// Returns a submission of the specified shape (see SHAPES).
+	public String xml(String shape, String formId, String instanceId) {
+		StringBuilder out = new StringBuilder()
+			.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+			.append("<data xmlns:jr=\"http://openrosa.org/javarosa\" id=\"")
+			.append(formId)
+			.append("\" instanceID=\"")
+			.append(instanceId)
+			.append("\">");
+		switch (shape) {
+			case "small":
+				field("name", "Respondent " + random.nextInt(1000), out);
+				field("age", Integer.toString(18 + random.nextInt(60)), out);
+				field("gender", random.nextBoolean() ? "female" : "male", out);
+				field("location", String.format("%.6f %.6f 120.0 5.0",
+					random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180),
+					out);
+				for (int i = 0; i < 8; i++)
+					field("q" + i, word(), out);
+				break;
+			case "wide":
+				for (int i = 0; i < 500; i++)
+					field("field" + i, word(), out);
+				break;
+			case "repeats":
+				field("village", "Village " + random.nextInt(100), out);
+				field("household_size", "50", out);
+				for (int i = 0; i < 50; i++) {
+					out.append("<member>");
+					field("name", "Member " + i, out);
+					field("age", Integer.toString(random.nextInt(90)), out);
+					field("relationship", word(), out);
+					field("occupation", word(), out);
+					field("education", word(), out);
+					field("literate", random.nextBoolean() ? "yes" : "no", out);
+					field("health", word(), out);
+					field("notes", word(), out);
+					out.append("</member>");
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("unknown shape: " + shape);
+		}
+		meta(instanceId, out);
+		return out.append("</data>").toString();
+	}
+}
@@ -0,0 +1,131 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.opendatakit.thin.VirtualThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+Compares the platform and virtual thread modes of the server (see
+Config.threadPool()) on requests that block on the database. The database is
+simulated: a pool of connections is a Semaphore, and a request holds a
+connection for a fixed time while its statement runs.
+
+In the background, a number of slow exports run continuously, each holding a
+connection for exportMillis. The benchmark measures the latency of a short
+ingest request that holds a connection for ingestMillis. When there are as many
+exports as platform threads, an ingest request waits in the thread pool's queue
+for an export to finish, even though connections are free. With virtual
+threads, it only waits for a connection.
+
+The virtual mode requires Java 21 or later and fails on older runtimes:
+
+	mvn -P benchmark test-compile exec:exec@benchmark \
+		-Dbenchmark.args="ThreadPoolBenchmark -p mode=platform"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ThreadPoolBenchmark {
+	@Param({"platform", "virtual"})
+	private String mode;
+
+	// SERVER_POOL_SIZE
+	@Param({"16"})
+	private int poolSize;
+
+	// DATABASE_POOL_SIZE
+	@Param({"32"})
+	private int connections;
+
+	@Param({"16"})
+	private int exports;
+
+	@Param({"200"})
+	private int exportMillis;
+
+	@Param({"2"})
+	private int ingestMillis;
+
+	private ThreadPool pool;
+	private Semaphore database;
+	private volatile boolean running;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		switch (mode) {
+			case "platform":
+				pool = new QueuedThreadPool(poolSize, 2, 30000);
+				break;
+			case "virtual":
+				pool = new VirtualThreadPool("benchmark");
+				break;
+			default:
+				throw new IllegalArgumentException("unknown mode: " + mode);
+		}
+		((LifeCycle) pool).start();
+		database = new Semaphore(connections, true);
+		running = true;
+		for (int i = 0; i < exports; i++)
+			pool.execute(this::export);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		running = false;
+		((LifeCycle) pool).stop();
+	}
+
+	// Holds a connection while a statement runs.
+	private void query(long millis) {
+		database.acquireUninterruptibly();
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			database.release();
+		}
+	}
+
+	// Runs an export, then submits the next one.
+	private void export() {
+		query(exportMillis);
+		if (running)
+			pool.execute(this::export);
+	}
+
+	@Benchmark
+	public Object ingest() throws Exception {
+		CompletableFuture<Object> done = new CompletableFuture<>();
+		pool.execute(() -> {
+			query(ingestMillis);
+			done.complete(Boolean.TRUE);
+		});
+		return done.get();
+	}
+}
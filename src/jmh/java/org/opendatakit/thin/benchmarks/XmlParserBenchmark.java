@@ -0,0 +1,77 @@
+package org.opendatakit.thin.benchmarks;
+
+import org.opendatakit.thin.xml.XmlParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+Measures the throughput of XmlParser. Run through JMH to measure a single thread
+count, or run main() to measure every thread count from 1 to the number of
+available processors and print how throughput scales:
+
+	mvn -P benchmark test-compile exec:exec@benchmark \
+		-Dbenchmark.main=org.opendatakit.thin.benchmarks.XmlParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlParserBenchmark {
+	private String xml;
+
+	@Setup
+	public void setUp() {
+		StringBuilder builder = new StringBuilder()
+			.append("<data id=\"benchmark\" instanceID=\"uuid:benchmark\">");
+		for (int i = 0; i < 50; i++) {
+			builder
+				.append("<field").append(i).append('>')
+				.append("value ").append(i)
+				.append("</field").append(i).append('>');
+		}
+		xml = builder.append("</data>").toString();
+	}
+
+	@Benchmark
+	public Document parse() throws IOException, SAXException {
+		return XmlParser.parse(xml);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		int processors = Runtime.getRuntime().availableProcessors();
+		double single = 0;
+		System.out.println("threads  ops/s         speedup");
+		for (int threads = 1; threads <= processors; threads++) {
+			Options options = new OptionsBuilder()
+				.include(XmlParserBenchmark.class.getName() + ".parse")
+				.threads(threads)
+				.build();
+			RunResult result = new Runner(options).runSingle();
+			double score = result.getPrimaryResult().getScore();
+			if (threads == 1)
+				single = score;
+			System.out.printf("%7d  %12.0f  %7.2f%n", threads, score,
+				score / single);
+		}
+	}
+}
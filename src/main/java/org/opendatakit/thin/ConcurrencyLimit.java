@@ -0,0 +1,114 @@
+package org.opendatakit.thin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ConcurrencyLimit limits the number of requests of one class, for example,
+ingest or export, that are in progress at once (see Router). A request that
+would exceed the limit is rejected immediately rather than waiting, so that
+when the database slows down, requests fail fast instead of piling up until
+clients time out and retry.
+
+The limit adapts to the database's latency by AIMD (additive increase,
+multiplicative decrease), like TCP congestion control. The latency of a request
+is that of its longest database operation: a statement, a fetch of rows, or a
+connection checkout. It does not grow with the number of rows that the request
+reads, so a large export of a healthy database does not reduce the limit.
+
+	- When a request's latency exceeds the target, or the request fails with a
+	  server error, the limit is multiplied by BACKOFF. It is decreased
+	  at most once per target interval, so that the requests that were already
+	  in progress when the database slowed down reduce it only once.
+	- When a request's latency is within the target while the limit is at least
+	  half used, the limit grows by 1 / limit, that is, by about one for every
+	  limit requests.
+
+The limit stays between 1 and maxLimit, and starts at maxLimit.
+ */
+public class ConcurrencyLimit {
+	private static final double BACKOFF = 0.75;
+
+	private final String name;
+	private final int maxLimit;
+	private final long targetNanos;
+	private final int retryAfterSeconds;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder rejected = new LongAdder();
+	private volatile double limit;
+	// Guarded by this
+	private long lastDecrease;
+
+	public ConcurrencyLimit(String name, int maxLimit, long target,
+		TimeUnit unit, int retryAfterSeconds) {
+		if (name == null)
+			throw new NullPointerException();
+		if (maxLimit < 1 || target < 0 || retryAfterSeconds < 0)
+			throw new IllegalArgumentException();
+		this.name = name;
+		this.maxLimit = maxLimit;
+		this.targetNanos = unit.toNanos(target);
+		this.retryAfterSeconds = retryAfterSeconds;
+		limit = maxLimit;
+		lastDecrease = System.nanoTime() - targetNanos;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	// Returns the number of seconds that a rejected client should wait before
+	// retrying.
+	public int retryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	// Returns true if a request may proceed, in which case the caller must call
+	// release() once it completes.
+	public boolean tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= (int) limit) {
+				rejected.increment();
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	// Releases a request that was admitted by tryAcquire() and adjusts the limit.
+	// latencyNanos is the time of the request's longest database operation, and
+	// failed is true if it failed with a server error.
+	public void release(long latencyNanos, boolean failed) {
+		int current = inFlight.getAndDecrement();
+		long now = System.nanoTime();
+		synchronized (this) {
+			if (failed || latencyNanos > targetNanos) {
+				if (now - lastDecrease >= targetNanos) {
+					limit = Math.max(1, limit * BACKOFF);
+					lastDecrease = now;
+				}
+			}
+			else if (current * 2 >= limit)
+				limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* metrics */
+
+	public int limit() {
+		return (int) limit;
+	}
+
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	public long rejected() {
+		return rejected.sum();
+	}
+}
@@ -1,7 +1,31 @@
 package org.opendatakit.thin;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zaxxer.hikari.HikariDataSource;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.opendatakit.thin.exports.CsvCache;
+import org.opendatakit.thin.exports.ParallelCsvExport;
+import org.opendatakit.thin.ingest.IngestLog;
+import org.opendatakit.thin.ingest.IngestQueue;
+import org.opendatakit.thin.metrics.Metrics;
+import org.opendatakit.thin.models.GroupCommitter;
+import org.opendatakit.thin.models.QueryLog;
 import org.sql2o.Sql2o;
 import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class Config {
 	public static class ConfigurationException extends IllegalStateException {
@@ -22,24 +46,446 @@ public class Config {
 		}
 	}
 
+	// The defaults of DATABASE_POOL_SIZE and ADMISSION_EXPORT_MAX_LIMIT
+	private static final int POOL_SIZE = 16;
+	private static final int EXPORT_MAX_LIMIT = 8;
+
+	// Returns the value of an integer environment variable, or defaultValue if
+	// the variable is not set.
+	private static int intEnv(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isEmpty())
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			throw new ConfigurationException(name + " must be an integer", e);
+		}
+	}
+
+	// Returns the value of a boolean environment variable, or defaultValue if the
+	// variable is not set.
+	private static boolean booleanEnv(String name, boolean defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isEmpty())
+			return defaultValue;
+		switch (value.trim().toLowerCase()) {
+			case "true":
+			case "1":
+				return true;
+			case "false":
+			case "0":
+				return false;
+			default:
+				throw new ConfigurationException(name + " must be true or false");
+		}
+	}
+
+	/*
+	threadPool() configures the thread pool of the embedded Jetty server and
+	exposes it to Metrics. It is configured through the following environment
+	variables:
+
+		SERVER_THREAD_MODE        platform or virtual (default platform)
+		SERVER_POOL_SIZE          maximum number of platform threads (default 16)
+		SERVER_POOL_MIN_THREADS   minimum number of platform threads (default 2)
+		SERVER_POOL_IDLE_TIMEOUT  milliseconds before an idle thread above the
+		                          minimum exits (default 30000)
+
+	In virtual mode, each request is handled on a new virtual thread (see
+	VirtualThreadPool), and the SERVER_POOL_ variables are ignored. Virtual mode
+	requires Java 21 or later.
+	 */
 	public static void threadPool() {
-		// TODO: Allow these values to be configured through environment variables.
-		Spark.threadPool(16, 2, 30000);
+		String mode = System.getenv("SERVER_THREAD_MODE");
+		boolean virtual;
+		if (mode == null || mode.isEmpty() || mode.equals("platform"))
+			virtual = false;
+		else if (mode.equals("virtual"))
+			virtual = true;
+		else {
+			throw new ConfigurationException(
+				"SERVER_THREAD_MODE must be platform or virtual");
+		}
+		if (virtual && !VirtualThreadPool.isSupported()) {
+			throw new ConfigurationException(
+				"SERVER_THREAD_MODE=virtual requires Java 21 or later");
+		}
+
+		int size = intEnv("SERVER_POOL_SIZE", 16);
+		int minThreads = intEnv("SERVER_POOL_MIN_THREADS", 2);
+		int idleTimeout = intEnv("SERVER_POOL_IDLE_TIMEOUT",
+			(int) TimeUnit.SECONDS.toMillis(30));
+		if (size < 1 || minThreads < 1 || minThreads > size || idleTimeout < 0) {
+			throw new ConfigurationException(
+				"SERVER_POOL_SIZE and SERVER_POOL_MIN_THREADS must be positive, " +
+				"SERVER_POOL_MIN_THREADS cannot exceed SERVER_POOL_SIZE, and " +
+				"SERVER_POOL_IDLE_TIMEOUT cannot be negative");
+		}
+
+		EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+			new EmbeddedJettyFactory((maxThreads, minIdle, idle) -> {
+				ThreadPool pool = virtual ? new VirtualThreadPool("jetty") :
+					new QueuedThreadPool(maxThreads, minIdle, idle);
+				Metrics.setThreadPool(pool);
+				return new Server(pool);
+			}));
+		Spark.threadPool(size, minThreads, idleTimeout);
 	}
 
-	// TODO: Configure connection pool.
-	public static Sql2o newSql2o() {
+	/*
+	newDataSource() returns a pooled DataSource for the database. The pool does
+	not open a connection until the first checkout. It is configured through the
+	following environment variables:
+
+		DATABASE_POOL_SIZE              maximum number of connections (default 16)
+		DATABASE_POOL_MIN_IDLE          minimum number of idle connections
+		                                (default DATABASE_POOL_SIZE)
+		DATABASE_POOL_IDLE_TIMEOUT      milliseconds before an idle connection
+		                                above the minimum is closed (default
+		                                600000)
+		DATABASE_POOL_MAX_LIFETIME      maximum lifetime of a connection in
+		                                milliseconds (default 1800000)
+		DATABASE_POOL_CHECKOUT_TIMEOUT  milliseconds to wait for a connection
+		                                before failing (default 30000)
+		DATABASE_FETCH_SIZE             number of rows fetched at a time by a
+		                                query in a transaction (default 1000)
+		DATABASE_PREPARE_THRESHOLD      number of executions of the same SQL on
+		                                a connection after which the driver
+		                                uses a server-side prepared statement
+		                                (default 5)
+
+	The PostgreSQL driver only uses the fetch size outside autocommit mode. In
+	autocommit mode, it reads the entire result set before returning it. See
+	AbstractModel.readTransaction().
+	 */
+	public static HikariDataSource newDataSource() {
 		String url = System.getenv("DATABASE_URL");
 		if (url == null)
 			throw new ConfigurationException("DATABASE_URL not set");
-		return new Sql2o(
-			"jdbc:" + url,
-			System.getenv("DATABASE_USERNAME"),
-			System.getenv("DATABASE_PASSWORD")
-		);
+		HikariDataSource dataSource = new HikariDataSource();
+		dataSource.setPoolName("thin");
+		dataSource.setJdbcUrl("jdbc:" + url);
+		dataSource.setUsername(System.getenv("DATABASE_USERNAME"));
+		dataSource.setPassword(System.getenv("DATABASE_PASSWORD"));
+
+		int size = intEnv("DATABASE_POOL_SIZE", POOL_SIZE);
+		if (size < 1)
+			throw new ConfigurationException("DATABASE_POOL_SIZE must be positive");
+		dataSource.setMaximumPoolSize(size);
+		dataSource.setMinimumIdle(intEnv("DATABASE_POOL_MIN_IDLE", size));
+		dataSource.setIdleTimeout(intEnv("DATABASE_POOL_IDLE_TIMEOUT",
+			(int) TimeUnit.MINUTES.toMillis(10)));
+		dataSource.setMaxLifetime(intEnv("DATABASE_POOL_MAX_LIFETIME",
+			(int) TimeUnit.MINUTES.toMillis(30)));
+		dataSource.setConnectionTimeout(intEnv("DATABASE_POOL_CHECKOUT_TIMEOUT",
+			(int) TimeUnit.SECONDS.toMillis(30)));
+
+		int fetchSize = intEnv("DATABASE_FETCH_SIZE", 1000);
+		if (fetchSize < 0)
+			throw new ConfigurationException("DATABASE_FETCH_SIZE cannot be negative");
+		dataSource.addDataSourceProperty("defaultRowFetchSize", fetchSize);
+		int prepareThreshold = intEnv("DATABASE_PREPARE_THRESHOLD", 5);
+		if (prepareThreshold < 0) {
+			throw new ConfigurationException(
+				"DATABASE_PREPARE_THRESHOLD cannot be negative");
+		}
+		dataSource.addDataSourceProperty("prepareThreshold", prepareThreshold);
+
+		PoolMetrics metrics = new PoolMetrics(dataSource);
+		dataSource.setMetricsTrackerFactory((poolName, poolStats) -> metrics);
+		dataSource.setRegisterMbeans(true);
+		PoolMetrics.setCurrent(metrics);
+		return dataSource;
+	}
+
+	public static Sql2o newSql2o() {
+		return new Sql2o(newDataSource());
+	}
+
+	/*
+	newQueryLog() returns a new QueryLog, which times and logs statements, and
+	makes it current (see QueryLog.current()). It is configured through the
+	following environment variables:
+
+		QUERY_LOG_PARAMETER_LENGTH  number of characters of each parameter value
+		                            that are logged at INFO; at DEBUG, values
+		                            are logged in full (default 100)
+		QUERY_LOG_QUEUE_SIZE        maximum number of entries waiting to be
+		                            logged, above which entries are dropped
+		                            (default 10000)
+		SLOW_QUERY_MILLIS           milliseconds at or above which a statement or
+		                            connection checkout is written to the
+		                            slow-query log (default 500)
+		SLOW_QUERY_LOG              file of the slow-query log (by default, slow
+		                            queries are logged at WARN to the logger
+		                            QueryLog.SLOW_LOGGER)
+	 */
+	public static QueryLog newQueryLog() {
+		int parameterLength = intEnv("QUERY_LOG_PARAMETER_LENGTH", 100);
+		int queueSize = intEnv("QUERY_LOG_QUEUE_SIZE", 10000);
+		int slowMillis = intEnv("SLOW_QUERY_MILLIS", 500);
+		if (parameterLength < 0 || queueSize < 1 || slowMillis < 0) {
+			throw new ConfigurationException(
+				"QUERY_LOG_PARAMETER_LENGTH and SLOW_QUERY_MILLIS cannot be " +
+				"negative, and QUERY_LOG_QUEUE_SIZE must be positive");
+		}
+		String slowLog = System.getenv("SLOW_QUERY_LOG");
+		QueryLog log = new QueryLog(slowMillis, parameterLength,
+			slowLog == null || slowLog.isEmpty() ? null : Paths.get(slowLog),
+			queueSize);
+		QueryLog.setCurrent(log);
+		return log;
+	}
+
+	/*
+	newSubmissionCache() returns a new cache for submissions looked up by formId
+	and instanceId, or null if the cache is disabled. It is configured through the
+	following environment variables:
+
+		SUBMISSION_CACHE_ENABLED  true or false (default true)
+		SUBMISSION_CACHE_SIZE     maximum number of entries (default 10000)
+		SUBMISSION_CACHE_TTL      seconds after which an entry expires (default
+		                          60)
+	 */
+	public static <K, V> Cache<K, V> newSubmissionCache() {
+		if (!booleanEnv("SUBMISSION_CACHE_ENABLED", true))
+			return null;
+		int size = intEnv("SUBMISSION_CACHE_SIZE", 10000);
+		int ttl = intEnv("SUBMISSION_CACHE_TTL", 60);
+		if (size < 0 || ttl < 0) {
+			throw new ConfigurationException(
+				"SUBMISSION_CACHE_SIZE and SUBMISSION_CACHE_TTL cannot be negative");
+		}
+		return CacheBuilder.newBuilder()
+			.maximumSize(size)
+			.expireAfterWrite(ttl, TimeUnit.SECONDS)
+			.recordStats()
+			.build();
+	}
+
+	/*
+	newGroupCommitter() returns a GroupCommitter for concurrent inserts, or null
+	if group commit is disabled. Group commit is disabled by default: its benefit
+	has only been measured against a simulated database (see
+	GroupCommitBenchmark), so measure it against yours, for example, with
+	LoadGenerator, before enabling it. It is configured through the following
+	environment variables:
+
+		GROUP_COMMIT_ENABLED        true or false (default false)
+		GROUP_COMMIT_THREADS        number of committer threads, each of which
+		                            uses one connection at a time (default 4)
+		GROUP_COMMIT_BATCH_SIZE     maximum number of inserts committed together
+		                            (default 100)
+		GROUP_COMMIT_WINDOW_MICROS  microseconds that a committer waits for more
+		                            inserts before committing a batch (default 0)
+	 */
+	public static <T, R> GroupCommitter<T, R> newGroupCommitter(String name,
+		Function<List<T>, List<R>> commit) {
+		if (!booleanEnv("GROUP_COMMIT_ENABLED", false))
+			return null;
+		int threads = intEnv("GROUP_COMMIT_THREADS", 4);
+		int batchSize = intEnv("GROUP_COMMIT_BATCH_SIZE", 100);
+		int window = intEnv("GROUP_COMMIT_WINDOW_MICROS", 0);
+		if (threads < 1 || batchSize < 1 || window < 0) {
+			throw new ConfigurationException(
+				"GROUP_COMMIT_THREADS and GROUP_COMMIT_BATCH_SIZE must be positive, " +
+				"and GROUP_COMMIT_WINDOW_MICROS cannot be negative");
+		}
+		return new GroupCommitter<>(name, commit, threads, batchSize, window,
+			TimeUnit.MICROSECONDS);
+	}
+
+	/*
+	newParallelCsvExport() returns a ParallelCsvExport for CSV exports, or null if
+	CSV exports are rendered on the request thread. It is configured through the
+	following environment variables:
+
+		EXPORT_PARALLELISM    number of threads that render chunks, each of which
+		                      uses one connection at a time; 0 renders exports on
+		                      the request thread (default 0)
+		EXPORT_CHUNK_SIZE     approximate number of submissions in a chunk
+		                      (default 5000)
+		EXPORT_MAX_IN_FLIGHT  maximum number of chunks of a single export that
+		                      are rendered or held in memory at once (default
+		                      twice EXPORT_PARALLELISM)
+
+	The threads are shared by all exports, and each export also holds the
+	connection of its snapshot while its chunks are rendered (see
+	ParallelCsvExport). So that the chunks never wait for a connection held by an
+	export, EXPORT_PARALLELISM plus ADMISSION_EXPORT_MAX_LIMIT must be less than
+	DATABASE_POOL_SIZE, which leaves at least one connection for other requests,
+	and admission control must be enabled (see newConcurrencyLimit()).
+	EXPORT_PARALLELISM cannot be combined with EXPORT_CACHE_DIR (see
+	newCsvCache()).
+	 */
+	public static ParallelCsvExport newParallelCsvExport() {
+		int parallelism = intEnv("EXPORT_PARALLELISM", 0);
+		if (parallelism == 0)
+			return null;
+		int chunkSize = intEnv("EXPORT_CHUNK_SIZE", 5000);
+		int maxInFlight = intEnv("EXPORT_MAX_IN_FLIGHT", 2 * parallelism);
+		if (parallelism < 0 || chunkSize < 1 || maxInFlight < 1) {
+			throw new ConfigurationException(
+				"EXPORT_PARALLELISM cannot be negative, and EXPORT_CHUNK_SIZE and " +
+				"EXPORT_MAX_IN_FLIGHT must be positive");
+		}
+		int poolSize = intEnv("DATABASE_POOL_SIZE", POOL_SIZE);
+		int exports = intEnv("ADMISSION_EXPORT_MAX_LIMIT", EXPORT_MAX_LIMIT);
+		if (!booleanEnv("ADMISSION_CONTROL_ENABLED", true) ||
+			parallelism + exports >= poolSize) {
+			throw new ConfigurationException(
+				"EXPORT_PARALLELISM requires admission control, and " +
+				"EXPORT_PARALLELISM plus ADMISSION_EXPORT_MAX_LIMIT must be less " +
+				"than DATABASE_POOL_SIZE");
+		}
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+			job -> {
+				Thread thread = new Thread(job, "export-" + threads.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		return new ParallelCsvExport(executor, chunkSize, maxInFlight);
+	}
+
+	/*
+	newCsvCache() returns a CsvCache for CSV exports, or null if CSV exports are
+	not cached. It is configured through the following environment variables:
+
+		EXPORT_CACHE_DIR     directory of the cached exports; if it is not set,
+		                     exports are not cached. Any exports left in the
+		                     directory are deleted.
+		EXPORT_CACHE_MAX_MB  maximum total size of the cached exports in
+		                     megabytes (default 1024)
+
+	A cached export is built on the request thread, so EXPORT_CACHE_DIR cannot be
+	combined with EXPORT_PARALLELISM (see newParallelCsvExport()).
+	 */
+	public static CsvCache newCsvCache() {
+		String directory = System.getenv("EXPORT_CACHE_DIR");
+		if (directory == null || directory.isEmpty())
+			return null;
+		if (intEnv("EXPORT_PARALLELISM", 0) != 0) {
+			throw new ConfigurationException(
+				"EXPORT_CACHE_DIR and EXPORT_PARALLELISM cannot both be set");
+		}
+		int maxMegabytes = intEnv("EXPORT_CACHE_MAX_MB", 1024);
+		if (maxMegabytes < 0) {
+			throw new ConfigurationException(
+				"EXPORT_CACHE_MAX_MB cannot be negative");
+		}
+		try {
+			return new CsvCache(Paths.get(directory), maxMegabytes * 1024L * 1024);
+		}
+		catch (IOException e) {
+			throw new ConfigurationException("Could not open the export cache", e);
+		}
+	}
+
+	// maxRequestSize() returns the maximum size in bytes of a request body, once
+	// decompressed, configured through REQUEST_MAX_SIZE (default 67108864). If
+	// INGEST_MODE is log, a submission is also limited by INGEST_SEGMENT_SIZE.
+	public static long maxRequestSize() {
+		int size = intEnv("REQUEST_MAX_SIZE", 64 * 1024 * 1024);
+		if (size < 1)
+			throw new ConfigurationException("REQUEST_MAX_SIZE must be positive");
+		return size;
+	}
+
+	// maxBatchSize() returns the maximum size in bytes of a request to create a
+	// batch of submissions, configured through BATCH_MAX_SIZE (default
+	// 268435456).
+	public static long maxBatchSize() {
+		int size = intEnv("BATCH_MAX_SIZE", 256 * 1024 * 1024);
+		if (size < 1)
+			throw new ConfigurationException("BATCH_MAX_SIZE must be positive");
+		return size;
+	}
+
+	/*
+	ingest() configures how Create saves submissions. By default, each submission
+	is saved synchronously. If INGEST_MODE is log, submissions are instead
+	appended to a durable log and written to the database in the background (see
+	IngestQueue). ingest() must be called before the server starts, so that any
+	submissions left in the log are replayed. It is configured through the
+	following environment variables:
+
+		INGEST_MODE          sync or log (default sync)
+		INGEST_LOG_DIR       directory of the log (default ingest-log)
+		INGEST_SEGMENT_SIZE  size of each log segment in bytes, which limits the
+		                     size of a submission (default 67108864)
+		INGEST_BATCH_SIZE    maximum number of submissions written in one
+		                     transaction (default 500)
+	 */
+	public static void ingest() {
+		String mode = System.getenv("INGEST_MODE");
+		if (mode == null || mode.isEmpty() || mode.equals("sync"))
+			return;
+		if (!mode.equals("log"))
+			throw new ConfigurationException("INGEST_MODE must be sync or log");
+		String directory = System.getenv("INGEST_LOG_DIR");
+		if (directory == null || directory.isEmpty())
+			directory = "ingest-log";
+		int segmentSize = intEnv("INGEST_SEGMENT_SIZE", 64 * 1024 * 1024);
+		int batchSize = intEnv("INGEST_BATCH_SIZE", 500);
+		if (segmentSize < 1024 || batchSize < 1) {
+			throw new ConfigurationException(
+				"INGEST_SEGMENT_SIZE must be at least 1024 and INGEST_BATCH_SIZE " +
+				"must be positive");
+		}
+		IngestLog log;
+		try {
+			log = new IngestLog(Paths.get(directory), segmentSize);
+		}
+		catch (IOException e) {
+			throw new ConfigurationException("Could not open the ingest log", e);
+		}
+		IngestQueue queue = new IngestQueue(log, batchSize);
+		queue.start();
+		IngestQueue.setCurrent(queue);
+	}
+
+	/*
+	newConcurrencyLimit() returns a new ConcurrencyLimit for a class of requests,
+	or null if admission control is disabled, and adds it to Metrics. name is the
+	name of the class, for example, INGEST. The limit is configured through the
+	following environment variables, where <NAME> is name:
+
+		ADMISSION_CONTROL_ENABLED      true or false (default true)
+		ADMISSION_RETRY_AFTER          seconds that a rejected client is asked to
+		                               wait before retrying (default 1)
+		ADMISSION_<NAME>_MAX_LIMIT     maximum number of requests in progress at
+		                               once (default maxLimit)
+		ADMISSION_<NAME>_TARGET_MILLIS milliseconds that a single database
+		                               operation of a request may take before the
+		                               limit is decreased (default targetMillis)
+	 */
+	public static ConcurrencyLimit newConcurrencyLimit(String name, int maxLimit,
+		int targetMillis) {
+		if (!booleanEnv("ADMISSION_CONTROL_ENABLED", true))
+			return null;
+		int retryAfter = intEnv("ADMISSION_RETRY_AFTER", 1);
+		String prefix = "ADMISSION_" + name + "_";
+		maxLimit = intEnv(prefix + "MAX_LIMIT", maxLimit);
+		targetMillis = intEnv(prefix + "TARGET_MILLIS", targetMillis);
+		if (retryAfter < 0 || maxLimit < 1 || targetMillis < 0) {
+			throw new ConfigurationException(
+				"ADMISSION_RETRY_AFTER and " + prefix + "TARGET_MILLIS cannot be " +
+				"negative, and " + prefix + "MAX_LIMIT must be positive");
+		}
+		ConcurrencyLimit limit = new ConcurrencyLimit(name.toLowerCase(),
+			maxLimit, targetMillis, TimeUnit.MILLISECONDS, retryAfter);
+		Metrics.addConcurrencyLimit(limit);
+		return limit;
 	}
 
+	// route() limits ingest requests (creates and updates) and export requests
+	// separately (see newConcurrencyLimit()). An export's operations include
+	// each fetch of rows through a cursor, which may be slower than an insert.
 	public static void route() {
-		new Router().routeAll();
+		new Router(newConcurrencyLimit("INGEST", 64, 250),
+			newConcurrencyLimit("EXPORT", EXPORT_MAX_LIMIT, 1000)).routeAll();
 	}
 }
@@ -0,0 +1,125 @@
+package org.opendatakit.thin;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+PoolMetrics exposes live statistics about the JDBC connection pool. The counts
+of active, idle, and waiting connections are read from the pool itself, while
+the checkout latency is recorded by Hikari through the IMetricsTracker
+interface. Hikari calls the tracker on the thread that checks out the
+connection, so the recording methods must not block.
+
+The pool is also registered as an MBean, so the same counts are available
+through JMX.
+ */
+public class PoolMetrics implements IMetricsTracker {
+	private static volatile PoolMetrics current;
+
+	private final HikariDataSource dataSource;
+	private final LongAdder checkouts = new LongAdder();
+	private final LongAdder checkoutNanos = new LongAdder();
+	private final LongAccumulator maxCheckoutNanos =
+		new LongAccumulator(Long::max, 0);
+	private final LongAdder timeouts = new LongAdder();
+
+	PoolMetrics(HikariDataSource dataSource) {
+		if (dataSource == null)
+			throw new NullPointerException();
+		this.dataSource = dataSource;
+	}
+
+	// Returns the metrics of the most recently configured pool, or null if no
+	// pool has been configured.
+	public static PoolMetrics current() {
+		return current;
+	}
+
+	static void setCurrent(PoolMetrics metrics) {
+		current = metrics;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* IMetricsTracker */
+
+	@Override
+	public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+		checkouts.increment();
+		checkoutNanos.add(elapsedAcquiredNanos);
+		maxCheckoutNanos.accumulate(elapsedAcquiredNanos);
+	}
+
+	@Override
+	public void recordConnectionTimeout() {
+		timeouts.increment();
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* live counts */
+
+	// Returns null until the pool has opened its first connection.
+	private HikariPoolMXBean pool() {
+		return dataSource.getHikariPoolMXBean();
+	}
+
+	public int active() {
+		HikariPoolMXBean pool = pool();
+		return pool != null ? pool.getActiveConnections() : 0;
+	}
+
+	public int idle() {
+		HikariPoolMXBean pool = pool();
+		return pool != null ? pool.getIdleConnections() : 0;
+	}
+
+	public int total() {
+		HikariPoolMXBean pool = pool();
+		return pool != null ? pool.getTotalConnections() : 0;
+	}
+
+	// Returns the number of threads waiting to check out a connection.
+	public int waiting() {
+		HikariPoolMXBean pool = pool();
+		return pool != null ? pool.getThreadsAwaitingConnection() : 0;
+	}
+
+	public int maxSize() {
+		return dataSource.getMaximumPoolSize();
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* checkout latency */
+
+	public long checkouts() {
+		return checkouts.sum();
+	}
+
+	public long checkoutTimeouts() {
+		return timeouts.sum();
+	}
+
+	public double meanCheckoutMillis() {
+		long count = checkouts.sum();
+		if (count == 0)
+			return 0;
+		return (double) checkoutNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public double maxCheckoutMillis() {
+		return (double) maxCheckoutNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public String toString() {
+		return String.format(
+			"active=%d idle=%d total=%d/%d waiting=%d checkouts=%d timeouts=%d " +
+			"meanCheckoutMs=%.3f maxCheckoutMs=%.3f",
+			active(), idle(), total(), maxSize(), waiting(), checkouts(),
+			checkoutTimeouts(), meanCheckoutMillis(), maxCheckoutMillis()
+		);
+	}
+}
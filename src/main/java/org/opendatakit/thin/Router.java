@@ -2,19 +2,39 @@ package org.opendatakit.thin;
 
 import com.google.common.collect.ImmutableSet;
 import org.opendatakit.thin.controllers.Action;
+import org.opendatakit.thin.controllers.MetricsController;
 import org.opendatakit.thin.controllers.SubmissionsController;
+import org.opendatakit.thin.metrics.Metrics;
+import org.opendatakit.thin.models.QueryLog;
 import spark.Request;
 import spark.Response;
 import spark.Route;
+import spark.RouteGroup;
 import spark.Spark;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Set;
 import java.util.function.BiConsumer;
 
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 import static spark.Spark.notFound;
-import static spark.Spark.path;
 
 public class Router {
+	// The concurrency limits of ingest and export requests, or null if admission
+	// control is disabled
+	private final ConcurrencyLimit ingest, export;
+	// The prefixes of the enclosing path() calls
+	private final Deque<String> prefixes = new ArrayDeque<>();
+	// The limit of the enclosing limit() call
+	private ConcurrencyLimit limit;
+
+	public Router(ConcurrencyLimit ingest, ConcurrencyLimit export) {
+		this.ingest = ingest;
+		this.export = export;
+	}
+
 	// routeAll() below only specifies Route objects that return Action objects.
 	// Those Route objects are instances of ActionRoute, which has a slightly
 	// stricter contract than Route.
@@ -51,18 +71,92 @@ public class Router {
 	/*
 	route() routes requests with the specified HTTP method and path to an
 	ActionRoute. The ActionRoute will return an Action object, which route() first
-	converts to String via Action.body(), then returns as the response body.
-	httpMethod should be one of the Spark HTTP-method methods, for example,
-	Spark::get.
+	converts to String via Action.body(), then passes through Action.finish() and
+	returns as the response body. finish() writes out any output that the Action
+	streamed, and compresses the body if appropriate. If body() throws, streamed
+	output that is still buffered is discarded. httpMethod should be one of the
+	Spark HTTP-method methods, for example, Spark::get.
+
+	route() also records the latency of each request, the time it spent in the
+	database, and the number of bytes it streamed (see Metrics).
+
+	If the route is within a limit() call, a request that would exceed the
+	ConcurrencyLimit is rejected with 503 and a Retry-After header before its
+	ActionRoute is called. Otherwise, the time of the request's longest database
+	operation (see QueryLog.threadMaxNanos()) and whether it failed with a server
+	error are reported to the limit when it completes.
 	 */
 	private void route(BiConsumer<String, Route> httpMethod, String path,
 		ActionRoute actionRoute) {
-		Route route = (request, response) ->
-			actionRoute.handle(request, response).body();
+		String pattern = String.join("", prefixes) + path;
+		ConcurrencyLimit limit = this.limit;
+		Route route = (request, response) -> {
+			long start = System.nanoTime();
+			if (limit != null && !limit.tryAcquire()) {
+				response.status(HTTP_UNAVAILABLE);
+				response.header("Retry-After",
+					Integer.toString(limit.retryAfterSeconds()));
+				Metrics.request(request.requestMethod(), pattern, HTTP_UNAVAILABLE,
+					System.nanoTime() - start, 0, 0);
+				return "Server is busy";
+			}
+			long databaseStart = QueryLog.threadNanos();
+			QueryLog.resetThreadMaxNanos();
+			Action action = null;
+			boolean failed = true;
+			try {
+				action = actionRoute.handle(request, response);
+				String body = action.finish(action.body());
+				failed = false;
+				return body;
+			}
+			finally {
+				if (action != null)
+					action.close();
+				// An exception becomes a 500 response.
+				int status = failed ? HTTP_INTERNAL_ERROR : response.raw().getStatus();
+				long databaseNanos = QueryLog.threadNanos() - databaseStart;
+				if (limit != null) {
+					limit.release(QueryLog.threadMaxNanos(),
+						status >= HTTP_INTERNAL_ERROR);
+				}
+				Metrics.request(request.requestMethod(), pattern, status,
+					System.nanoTime() - start, databaseNanos,
+					action != null ? action.bytesStreamed() : 0);
+			}
+		};
 		for (String version : pathVersions(path))
 			httpMethod.accept(version, route);
 	}
 
+	/*
+	path() groups routes under a common path prefix, like Spark.path(). Router
+	keeps track of the prefixes itself so that each route's metrics are labeled
+	with the route's full path pattern (see Metrics).
+	 */
+	private void path(String prefix, RouteGroup group) {
+		prefixes.addLast(prefix);
+		try {
+			Spark.path(prefix, group);
+		}
+		finally {
+			prefixes.removeLast();
+		}
+	}
+
+	// limit() applies a ConcurrencyLimit to a group of routes (see route()). If
+	// limit is null, the routes are not limited.
+	private void limit(ConcurrencyLimit limit, RouteGroup group) {
+		ConcurrencyLimit enclosing = this.limit;
+		this.limit = limit;
+		try {
+			group.addRoutes();
+		}
+		finally {
+			this.limit = enclosing;
+		}
+	}
+
 	private void post(String path, ActionRoute route) {
 		route(Spark::post, path, route);
 	}
@@ -101,14 +195,19 @@ public class Router {
 		// object before it is returned as the response body.
 
 		path("/submission", () -> {
-			post(SubmissionsController.Create::new);
-			get("/:formIdWithFormat", SubmissionsController.GetFormSubmissions::new);
+			limit(ingest, () -> {
+				post(SubmissionsController.Create::new);
+				post("/batch", SubmissionsController.CreateBatch::new);
+			});
+			limit(export, () -> get("/:formIdWithFormat",
+				SubmissionsController.GetFormSubmissions::new));
 
 			path("/:formId/:instanceId", () -> {
 				get(SubmissionsController.GetSubmission::new);
-				patch(SubmissionsController.Update::new);
+				limit(ingest, () -> patch(SubmissionsController.Update::new));
 			});
 		});
+		get("/metrics", MetricsController.Show::new);
 		notFound("404 Not found");
 	}
 }
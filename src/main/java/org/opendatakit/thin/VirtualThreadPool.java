@@ -0,0 +1,115 @@
+package org.opendatakit.thin;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+VirtualThreadPool is a Jetty ThreadPool that runs each job on a new virtual
+thread. A request that blocks, for example, while it waits for a database
+connection, parks its virtual thread rather than holding one of a fixed number
+of platform threads, so slow requests cannot starve the others of threads. The
+number of concurrent requests is then limited by the connection pool and by
+admission control rather than by the thread pool.
+
+Virtual threads require Java 21. The project is built for Java 17, so the
+virtual thread factory is looked up reflectively, and the constructor throws
+UnsupportedOperationException on an older runtime (see isSupported()).
+
+Note that the PostgreSQL driver performs socket I/O while holding a monitor,
+which pins the virtual thread to its carrier thread for the duration of the
+statement. Waiting for a connection from the pool does not pin.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+	private final ThreadFactory factory;
+	private final AtomicInteger threads = new AtomicInteger();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	public VirtualThreadPool(String name) {
+		factory = virtualThreadFactory(name);
+	}
+
+	// Returns true if the runtime supports virtual threads.
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	// Returns a factory of virtual threads named prefix-0, prefix-1, and so on:
+	// Thread.ofVirtual().name(prefix + "-", 0).factory()
+	private static ThreadFactory virtualThreadFactory(String prefix) {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException(
+				"virtual threads require Java 21 or later");
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, prefix + "-", 0L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException(
+				"could not create a virtual thread factory", e);
+		}
+	}
+
+	// Like QueuedThreadPool, execute() throws a RejectedExecutionException if
+	// the pool is not running, for example, once it has been stopped.
+	@Override
+	public void execute(Runnable job) {
+		if (!isRunning())
+			throw new RejectedExecutionException(job.toString());
+		Thread thread = factory.newThread(() -> {
+			try {
+				job.run();
+			}
+			finally {
+				threads.decrementAndGet();
+			}
+		});
+		threads.incrementAndGet();
+		thread.start();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		stopped.countDown();
+		super.doStop();
+	}
+
+	// Waits until the pool is stopped.
+	@Override
+	public void join() throws InterruptedException {
+		stopped.await();
+	}
+
+	// Returns the number of running virtual threads.
+	@Override
+	public int getThreads() {
+		return threads.get();
+	}
+
+	// Virtual threads are never idle: each one exits when its job is done.
+	@Override
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	@Override
+	public boolean isLowOnThreads() {
+		return false;
+	}
+}
@@ -1,26 +1,46 @@
 package org.opendatakit.thin.controllers;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import org.opendatakit.thin.ApiRepresentable;
+import org.opendatakit.thin.Config;
+import org.opendatakit.thin.metrics.Metrics;
 import spark.Request;
 import spark.Response;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.net.HttpURLConnection.HTTP_NO_CONTENT;
+import static java.net.HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
 
 // Action encapsulates a controller action. It is instantiated with Request and
 // Response objects, then returns a String response body from body(). It may
-// also mutate the Response object.
-public abstract class Action {
+// also mutate the Response object or stream the response body (see output()).
+// Once body() has returned, finish() must be called, then close().
+public abstract class Action implements AutoCloseable {
 	private final Request request;
 	private final Response response;
+	private ResponseWriter output;
+	// The time spent serializing streamed JSON (see streamJson())
+	private long streamedJsonNanos;
 
 	public Action(Request request, Response response) {
 		this.request = request;
@@ -54,6 +74,253 @@ public abstract class Action {
 		return badRequest("Invalid format");
 	}
 
+	/* ------------------------------------------------------------------------ */
+				/* compression */
+
+	/*
+	Responses are compressed with gzip or deflate if the client accepts either
+	according to its Accept-Encoding header. Streamed responses are always
+	eligible for compression, while a response body returned from body() is
+	compressed only if it is at least MIN_COMPRESSED_LENGTH characters long.
+
+	Request bodies may be compressed with gzip or deflate as indicated by the
+	Content-Encoding header. Use requestBody() rather than request().body() to
+	read a request body that may be compressed, and to limit its length.
+	 */
+	private static final int MIN_COMPRESSED_LENGTH = 256;
+	private static final Pattern QUALITY =
+		Pattern.compile(";\\s*q\\s*=\\s*([0-9.]+)");
+	// The largest request body that requestBody() reads by default, which is
+	// also the largest part of a multipart request (see Config.maxRequestSize())
+	protected static final long MAX_REQUEST_LENGTH = Config.maxRequestSize();
+
+	// The negotiated content encoding of the response, if it has been negotiated
+	private String encoding;
+	private boolean encodingNegotiated;
+
+	private boolean isCompressible() {
+		int status = response.raw().getStatus();
+		return status != HTTP_NOT_MODIFIED && status != HTTP_NO_CONTENT;
+	}
+
+	// Returns the quality value of a coding in an Accept-Encoding header.
+	private static double quality(String coding) {
+		Matcher matcher = QUALITY.matcher(coding);
+		if (!matcher.find())
+			return 1;
+		try {
+			return Double.parseDouble(matcher.group(1));
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	// Returns gzip, deflate, or null according to the request's Accept-Encoding
+	// header. gzip is preferred when the client has no preference.
+	private static String negotiateEncoding(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return null;
+		double gzip = 0, deflate = 0, any = 0;
+		boolean gzipListed = false, deflateListed = false;
+		for (String coding : acceptEncoding.split(",")) {
+			String name = coding.split(";", 2)[0].trim().toLowerCase();
+			double quality = quality(coding);
+			if (name.equals("gzip") || name.equals("x-gzip")) {
+				gzip = quality;
+				gzipListed = true;
+			}
+			else if (name.equals("deflate")) {
+				deflate = quality;
+				deflateListed = true;
+			}
+			else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+		if (!gzipListed)
+			gzip = any;
+		if (!deflateListed)
+			deflate = any;
+		if (gzip > 0 && gzip >= deflate)
+			return "gzip";
+		return deflate > 0 ? "deflate" : null;
+	}
+
+	private String negotiateEncoding() {
+		if (!encodingNegotiated) {
+			encoding = negotiateEncoding(request.headers("Accept-Encoding"));
+			encodingNegotiated = true;
+			response.header("Vary", "Accept-Encoding");
+		}
+		return encoding;
+	}
+
+	// Returns the Content-Encoding of the request body, or null if the body is not
+	// encoded.
+	private String requestEncoding() {
+		String encoding = request.headers("Content-Encoding");
+		if (encoding == null)
+			return null;
+		encoding = encoding.trim().toLowerCase();
+		return encoding.isEmpty() || encoding.equals("identity") ? null : encoding;
+	}
+
+	// Returns true if the request body is not encoded or is encoded with a
+	// supported encoding.
+	protected boolean isRequestEncodingSupported() {
+		String encoding = requestEncoding();
+		return encoding == null || encoding.equals("gzip") ||
+			encoding.equals("x-gzip") || encoding.equals("deflate");
+	}
+
+	// Returns true if the request body is compressed.
+	protected boolean isRequestCompressed() {
+		return requestEncoding() != null;
+	}
+
+	/*
+	requestStream() returns the request body as an InputStream, decompressing it
+	as it is read if it is compressed. It throws an IOException if the
+	Content-Encoding is not supported (see isRequestEncodingSupported()).
+	 */
+	protected InputStream requestStream() throws IOException {
+		// Spark's wrapper of the servlet request buffers the entire body in memory
+		// the first time that it is read, so the body is read from the request
+		// that it wraps instead.
+		ServletRequest raw = request.raw();
+		if (raw instanceof ServletRequestWrapper)
+			raw = ((ServletRequestWrapper) raw).getRequest();
+		InputStream in = raw.getInputStream();
+		String encoding = requestEncoding();
+		if (encoding == null)
+			return in;
+		switch (encoding) {
+			case "gzip":
+			case "x-gzip":
+				return new GZIPInputStream(in);
+			case "deflate":
+				return new InflaterInputStream(in);
+			default:
+				throw new IOException("unsupported Content-Encoding: " + encoding);
+		}
+	}
+
+	// RequestTooLargeException is thrown by requestBody() if the body is longer
+	// than the limit.
+	protected static class RequestTooLargeException extends IOException {
+		public RequestTooLargeException() {
+			super("request body is too long");
+		}
+	}
+
+	// Returns the charset with the specified name, or UTF-8 if name is null,
+	// throwing an IOException if the charset is not supported.
+	protected static Charset charset(String name) throws IOException {
+		if (name == null)
+			return StandardCharsets.UTF_8;
+		try {
+			return Charset.forName(name);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException("unsupported charset: " + name, e);
+		}
+	}
+
+	/*
+	requestBody() returns the request body as a String, throwing a
+	RequestTooLargeException if it is longer than maxLength bytes (once
+	decompressed, if it is compressed). It throws another IOException if the body
+	cannot be read or decompressed. Whether or not the body is compressed, it is
+	decoded with the request's character encoding, or UTF-8 if none is
+	specified.
+
+	If the body is not compressed and its Content-Length is known, it is read
+	into an array of exactly that length, so that it is held in memory only as
+	those bytes and the decoded String.
+	 */
+	protected String requestBody(long maxLength) throws IOException {
+		Charset charset = charset(request.raw().getCharacterEncoding());
+		long contentLength =
+			isRequestCompressed() ? -1 : request.raw().getContentLengthLong();
+		if (contentLength > maxLength)
+			throw new RequestTooLargeException();
+		try (InputStream in = requestStream()) {
+			byte[] bytes;
+			if (contentLength >= 0) {
+				bytes = new byte[(int) contentLength];
+				ByteStreams.readFully(in, bytes);
+			}
+			else {
+				bytes = ByteStreams.toByteArray(ByteStreams.limit(in, maxLength + 1));
+				if (bytes.length > maxLength)
+					throw new RequestTooLargeException();
+			}
+			return new String(bytes, charset);
+		}
+	}
+
+	protected String requestBody() throws IOException {
+		return requestBody(MAX_REQUEST_LENGTH);
+	}
+
+	protected String unsupportedEncoding() {
+		return respond(HTTP_UNSUPPORTED_TYPE, "Unsupported Content-Encoding");
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* conditional requests */
+
+	// Returns a strong entity tag for the specified parts. The tag is opaque:
+	// it is a hash of the parts.
+	protected static String entityTag(String... parts) {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		for (String part : parts) {
+			hasher
+				.putString(String.valueOf(part), StandardCharsets.UTF_8)
+				.putByte((byte) 0);
+		}
+		return '"' + hasher.hash().toString() + '"';
+	}
+
+	// Returns true if the request's If-None-Match header matches the specified
+	// entity tag. As required for If-None-Match, the comparison is weak.
+	private boolean ifNoneMatch(String etag) {
+		String header = request.headers("If-None-Match");
+		if (header == null)
+			return false;
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*"))
+				return true;
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if (candidate.equals(opaque))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	notModified() sets the ETag header of the response, replacing any entity tag
+	that was set before. If the request's If-None-Match header matches the entity
+	tag, it also sets the response status to 304 Not Modified and returns true,
+	in which case the action should return an empty body without doing any
+	further work. For example:
+
+		String etag = entityTag(...);
+		if (notModified(etag))
+			return "";
+	 */
+	protected boolean notModified(String etag) {
+		response.raw().setHeader("ETag", etag);
+		if (!ifNoneMatch(etag))
+			return false;
+		response.status(HTTP_NOT_MODIFIED);
+		return true;
+	}
+
 	/* ------------------------------------------------------------------------ */
 				/* JSON response */
 
@@ -87,14 +354,86 @@ public abstract class Action {
 	 */
 	protected String jsonResponse(Object body) {
 		response.type("application/json");
-		Object forJson;
+		long start = System.nanoTime();
+		String json = GSON.toJson(transformForJson(body));
+		Metrics.JSON_SERIALIZATION.record(System.nanoTime() - start);
+		return json;
+	}
+
+	private Object transformForJson(Object body) {
 		if (body instanceof ApiRepresentable)
-			forJson = transformForJson((ApiRepresentable) body);
+			return transformForJson((ApiRepresentable) body);
 		else if (body instanceof List)
-			forJson = transformForJson((List<?>) body);
+			return transformForJson((List<?>) body);
 		else
-			forJson = body;
-		return GSON.toJson(forJson);
+			return body;
+	}
+
+	/*
+	The following methods stream JSON to output() one value at a time, so that a
+	large response never has to be held in memory. They transform values the same
+	way as jsonResponse(), and the time spent serializing the values of a
+	response is recorded in Metrics.JSON_SERIALIZATION once the response is
+	finished. That time excludes the time spent writing output to the client, as
+	well as the time between values, for example, to fetch them from a cursor.
+	For example, to stream a JSON array:
+
+		JsonWriter writer = jsonWriter();
+		writer.beginArray();
+		for (Submission submission : submissions)
+			streamJson(submission, writer);
+		writer.endArray();
+		writer.flush();
+
+	jsonWriter() returns a new JsonWriter that writes to output().
+	 */
+	protected JsonWriter jsonWriter() {
+		return new JsonWriter(output());
+	}
+
+	// Writes a single value to a JsonWriter.
+	protected void streamJson(Object value, JsonWriter writer) {
+		long start = System.nanoTime();
+		long drained = output().drainNanos();
+		try {
+			Object forJson = transformForJson(value);
+			if (forJson == null) {
+				try {
+					writer.nullValue();
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				return;
+			}
+			GSON.toJson(forJson, forJson.getClass(), writer);
+		}
+		finally {
+			addStreamedJsonNanos(start, drained);
+		}
+	}
+
+	// Writes a value as a single line of newline-delimited JSON.
+	protected void streamJsonLine(Object value) {
+		long start = System.nanoTime();
+		long drained = output().drainNanos();
+		try {
+			GSON.toJson(transformForJson(value), output());
+			output().write('\n');
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			addStreamedJsonNanos(start, drained);
+		}
+	}
+
+	// Adds the time since start, less the time that output() spent writing to
+	// the client since then, to the time spent serializing streamed JSON.
+	private void addStreamedJsonNanos(long start, long drained) {
+		streamedJsonNanos += System.nanoTime() - start -
+			(output.drainNanos() - drained);
 	}
 
 	/* ------------------------------------------------------------------------ */
@@ -162,18 +501,77 @@ public abstract class Action {
 	/* ------------------------------------------------------------------------ */
 				/* streaming */
 
-	public void stream(byte[] b) {
-		try {
-			response().raw().getOutputStream().write(b);
+	/*
+	output() returns the writer to which the response body may be streamed. The
+	writer encodes characters as UTF-8, so streaming actions should specify a
+	content type with that charset. An action that streams its response should
+	return an empty string from body().
+
+	The writer is created on the first call to output(). It is buffered, and the
+	buffer is written to the response only when it fills up, when the writer is
+	flushed, or when finish() is called.
+	 */
+	public ResponseWriter output() {
+		if (output == null) {
+			String encoding = negotiateEncoding();
+			if (encoding != null)
+				response.header("Content-Encoding", encoding);
+			output = new ResponseWriter(response.raw(), encoding);
 		}
-		catch (IOException e) {
-			throw new RuntimeException(e);
+		return output;
+	}
+
+	// Returns the number of bytes streamed to output() so far, before
+	// compression.
+	public long bytesStreamed() {
+		return output != null ? output.bytesWritten() : 0;
+	}
+
+	/*
+	finish() completes the response. Router calls it with the value that body()
+	returned, and returns the result as the response body. If the response body
+	is long enough to be worth compressing and the client accepts a compressed
+	response, finish() writes the body to output() and returns an empty string.
+	Finally, it writes any output that is still buffered.
+	 */
+	public String finish(String body) {
+		if (output == null && body != null &&
+			body.length() >= MIN_COMPRESSED_LENGTH && isCompressible()) {
+			if (response.type() == null)
+				response.type("text/html; charset=utf-8");
+			if (negotiateEncoding() != null) {
+				stream(body);
+				body = "";
+			}
 		}
+		if (streamedJsonNanos > 0)
+			Metrics.JSON_SERIALIZATION.record(streamedJsonNanos);
+		if (output != null) {
+			try {
+				output.close();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return body;
+	}
+
+	// Releases the resources of the action. If finish() was not called, for
+	// example, because body() threw an exception, any buffered output is
+	// discarded.
+	public void close() {
+		if (output != null)
+			output.discard();
+	}
+
+	public void stream(byte[] b) {
+		stream(b, 0, b.length);
 	}
 
 	public void stream(byte[] b, int off, int len) {
 		try {
-			response().raw().getOutputStream().write(b, off, len);
+			output().writeBytes(b, off, len);
 		}
 		catch (IOException e) {
 			throw new RuntimeException(e);
@@ -182,7 +580,7 @@ public abstract class Action {
 
 	public void stream(int b) {
 		try {
-			response().raw().getOutputStream().write(b);
+			output().writeByte(b);
 		}
 		catch (IOException e) {
 			throw new RuntimeException(e);
@@ -190,6 +588,11 @@ public abstract class Action {
 	}
 
 	public void stream(CharSequence sequence) {
-		stream(sequence.toString().getBytes());
+		try {
+			output().append(sequence);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 }
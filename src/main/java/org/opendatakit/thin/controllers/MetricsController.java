@@ -0,0 +1,29 @@
+package org.opendatakit.thin.controllers;
+
+import org.opendatakit.thin.metrics.Metrics;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+
+public class MetricsController {
+	// Shows every metric in the Prometheus text format (see Metrics).
+	public static class Show extends Action {
+		public Show(Request request, Response response) {
+			super(request, response);
+		}
+
+		public String body() {
+			StringBuilder body = new StringBuilder();
+			try {
+				Metrics.writePrometheus(body);
+			}
+			catch (IOException e) {
+				// A StringBuilder does not throw IOException.
+				throw new AssertionError(e);
+			}
+			response().type("text/plain; version=0.0.4; charset=utf-8");
+			return body.toString();
+		}
+	}
+}
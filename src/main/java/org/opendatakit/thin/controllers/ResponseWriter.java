@@ -0,0 +1,399 @@
+package org.opendatakit.thin.controllers;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ResponseWriter streams a response body, encoding characters as UTF-8. Characters
+are encoded directly into a byte buffer, which is written to the response when it
+fills up and when the writer is flushed or closed. Raw bytes may also be written
+through writeBytes(); they share the same buffer, so the order of writes is
+preserved. Files may be written through writeFile().
+
+If the writer is created with a content encoding of gzip or deflate, the output
+is compressed on its way to the response. Compressed output is still streamed:
+the compressor writes to the response as its own buffer fills, and flush()
+performs a sync flush.
+
+Buffers are borrowed from a pool when the writer is created and returned when it
+is closed or discarded. A ResponseWriter is owned by an Action (see
+Action.output()), which closes it at the end of the request. Closing the writer
+does not close the servlet output stream, which belongs to the container.
+
+Unlike most Writer implementations, ResponseWriter is not thread-safe.
+ */
+public class ResponseWriter extends Writer {
+	private static final int BUFFER_SIZE = 16 * 1024;
+	// The largest region of a file that writeFile() maps at once
+	private static final long MAX_MAPPED_SIZE = 64L * 1024 * 1024;
+	private static final int MAX_POOLED =
+		Runtime.getRuntime().availableProcessors() * 8;
+	private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger POOLED = new AtomicInteger();
+
+	private static final byte REPLACEMENT = '?';
+
+	private final HttpServletResponse response;
+	// gzip, deflate, or null for no compression
+	private final String contentEncoding;
+	private OutputStream stream;
+	private byte[] buffer;
+	private int position;
+	// A high surrogate whose low surrogate has not been written yet, or 0.
+	private char highSurrogate;
+	private long bytesWritten;
+	// The time that drain() has spent writing the buffer to the response
+	private long drainNanos;
+	private boolean closed;
+
+	public ResponseWriter(HttpServletResponse response) {
+		this(response, null);
+	}
+
+	// contentEncoding must be gzip, deflate, or null. The caller is responsible
+	// for setting the Content-Encoding header.
+	public ResponseWriter(HttpServletResponse response, String contentEncoding) {
+		if (response == null)
+			throw new NullPointerException();
+		if (contentEncoding != null && !contentEncoding.equals("gzip") &&
+			!contentEncoding.equals("deflate"))
+			throw new IllegalArgumentException("unsupported content encoding");
+		this.response = response;
+		this.contentEncoding = contentEncoding;
+		buffer = borrowBuffer();
+	}
+
+	// Wraps the servlet output stream so that closing a compressor finishes the
+	// compressed stream without closing the servlet output stream.
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		public NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	private static byte[] borrowBuffer() {
+		byte[] buffer = POOL.poll();
+		if (buffer == null)
+			return new byte[BUFFER_SIZE];
+		POOLED.decrementAndGet();
+		return buffer;
+	}
+
+	private static void returnBuffer(byte[] buffer) {
+		if (POOLED.incrementAndGet() <= MAX_POOLED)
+			POOL.offer(buffer);
+		else
+			POOLED.decrementAndGet();
+	}
+
+	// Returns the total number of bytes written to the response so far, before
+	// compression.
+	public long bytesWritten() {
+		return bytesWritten;
+	}
+
+	// Returns the time spent writing the buffer to the response as it filled
+	// up, in nanoseconds. A write may block until the client has read earlier
+	// output, so a caller that times its writes can subtract this time to leave
+	// only its own work.
+	public long drainNanos() {
+		return drainNanos;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new IOException("ResponseWriter is closed");
+	}
+
+	private OutputStream stream() throws IOException {
+		if (stream == null) {
+			OutputStream out = response.getOutputStream();
+			if (contentEncoding == null) {
+				stream = out;
+			}
+			else if (contentEncoding.equals("gzip")) {
+				stream = new GZIPOutputStream(new NonClosingOutputStream(out),
+					BUFFER_SIZE, true);
+			}
+			else {
+				stream = new DeflaterOutputStream(new NonClosingOutputStream(out),
+					true);
+			}
+		}
+		return stream;
+	}
+
+	// Writes the contents of the buffer to the response without flushing the
+	// response.
+	private void drain() throws IOException {
+		if (position == 0)
+			return;
+		long start = System.nanoTime();
+		stream().write(buffer, 0, position);
+		drainNanos += System.nanoTime() - start;
+		bytesWritten += position;
+		position = 0;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* encoding */
+
+	// Makes room for at least n bytes, where n is at most 4.
+	private void reserve(int n) throws IOException {
+		if (buffer.length - position < n)
+			drain();
+	}
+
+	private void encode(char c) throws IOException {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				reserve(4);
+				buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+				return;
+			}
+			// Like String.getBytes(), replace an unpaired surrogate.
+			reserve(1);
+			buffer[position++] = REPLACEMENT;
+		}
+
+		if (c < 0x80) {
+			if (position == buffer.length)
+				drain();
+			buffer[position++] = (byte) c;
+		}
+		else if (c < 0x800) {
+			reserve(2);
+			buffer[position++] = (byte) (0xc0 | (c >> 6));
+			buffer[position++] = (byte) (0x80 | (c & 0x3f));
+		}
+		else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		}
+		else if (Character.isLowSurrogate(c)) {
+			reserve(1);
+			buffer[position++] = REPLACEMENT;
+		}
+		else {
+			reserve(3);
+			buffer[position++] = (byte) (0xe0 | (c >> 12));
+			buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[position++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	// Writes out a high surrogate that was never followed by a low surrogate.
+	private void endCharacters() throws IOException {
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			reserve(1);
+			buffer[position++] = REPLACEMENT;
+		}
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* Writer */
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		encode((char) c);
+	}
+
+	@Override
+	public void write(char[] chars, int offset, int length) throws IOException {
+		ensureOpen();
+		for (int i = offset, end = offset + length; i < end; i++)
+			encode(chars[i]);
+	}
+
+	@Override
+	public void write(String string, int offset, int length) throws IOException {
+		ensureOpen();
+		for (int i = offset, end = offset + length; i < end; i++)
+			encode(string.charAt(i));
+	}
+
+	@Override
+	public Writer append(CharSequence sequence) throws IOException {
+		ensureOpen();
+		if (sequence == null)
+			sequence = "null";
+		for (int i = 0, length = sequence.length(); i < length; i++)
+			encode(sequence.charAt(i));
+		return this;
+	}
+
+	@Override
+	public Writer append(CharSequence sequence, int start, int end)
+		throws IOException {
+		ensureOpen();
+		if (sequence == null)
+			sequence = "null";
+		for (int i = start; i < end; i++)
+			encode(sequence.charAt(i));
+		return this;
+	}
+
+	@Override
+	public Writer append(char c) throws IOException {
+		ensureOpen();
+		encode(c);
+		return this;
+	}
+
+	public void writeBytes(byte[] bytes, int offset, int length)
+		throws IOException {
+		ensureOpen();
+		endCharacters();
+		if (length >= buffer.length) {
+			drain();
+			stream().write(bytes, offset, length);
+			bytesWritten += length;
+			return;
+		}
+		if (buffer.length - position < length)
+			drain();
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+	}
+
+	/*
+	writeFile() writes count bytes of a file, starting at position, after any
+	buffered output. If the response is not compressed, the file is not copied
+	through the buffer: with Jetty's output stream, regions of the file are
+	memory-mapped and written straight to the connection, so the bytes go from
+	the page cache to the socket without being copied into the heap; with any
+	other stream, the file is transferred with FileChannel.transferTo(). If the
+	response is compressed, the file is read through the buffer and compressed.
+	 */
+	public void writeFile(FileChannel file, long position, long count)
+		throws IOException {
+		ensureOpen();
+		endCharacters();
+		drain();
+		OutputStream out = stream();
+		long end = position + count;
+		if (contentEncoding == null && out instanceof HttpOutput) {
+			for (long start = position; start < end; start += MAX_MAPPED_SIZE) {
+				long size = Math.min(MAX_MAPPED_SIZE, end - start);
+				((HttpOutput) out).write(
+					file.map(FileChannel.MapMode.READ_ONLY, start, size));
+			}
+		}
+		else if (contentEncoding == null) {
+			WritableByteChannel channel = Channels.newChannel(out);
+			for (long start = position; start < end; )
+				start += file.transferTo(start, end - start, channel);
+		}
+		else {
+			ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+			for (long start = position; start < end; ) {
+				wrapped.clear();
+				wrapped.limit((int) Math.min(buffer.length, end - start));
+				int read = file.read(wrapped, start);
+				if (read < 0)
+					throw new EOFException("file is shorter than expected");
+				out.write(buffer, 0, read);
+				start += read;
+			}
+		}
+		bytesWritten += count;
+	}
+
+	public void writeByte(int b) throws IOException {
+		ensureOpen();
+		endCharacters();
+		if (position == buffer.length)
+			drain();
+		buffer[position++] = (byte) b;
+	}
+
+	// Writes the buffer to the response and flushes the response, committing it
+	// if it has not been committed yet.
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		drain();
+		stream().flush();
+	}
+
+	// Writes any buffered output to the response, finishing the compressed
+	// stream if there is one, then releases the buffer. Calling close() more than
+	// once has no effect.
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			endCharacters();
+			drain();
+			// Even an empty compressed body has a header and trailer.
+			if (contentEncoding != null)
+				stream().close();
+			else if (stream != null)
+				stream.flush();
+		}
+		finally {
+			release();
+		}
+	}
+
+	// Releases the buffer without writing it, discarding any output that has not
+	// been written to the response yet. Use discard() when the response fails
+	// partway through: if the response has not been committed, discard() also
+	// clears the response buffer and the Content-Encoding header, so that the
+	// container can still respond with an error.
+	public void discard() {
+		if (closed)
+			return;
+		position = 0;
+		if (!response.isCommitted()) {
+			response.resetBuffer();
+			if (contentEncoding != null)
+				response.setHeader("Content-Encoding", null);
+		}
+		release();
+	}
+
+	private void release() {
+		closed = true;
+		byte[] released = buffer;
+		buffer = null;
+		returnBuffer(released);
+	}
+}
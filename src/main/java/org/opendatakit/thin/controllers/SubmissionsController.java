@@ -1,112 +1,269 @@
 package org.opendatakit.thin.controllers;
 
-import com.google.common.base.CharMatcher;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CharStreams;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.gson.stream.JsonWriter;
+import org.eclipse.jetty.http.MimeTypes;
+import org.opendatakit.thin.Config;
+import org.opendatakit.thin.exports.CsvCache;
+import org.opendatakit.thin.exports.CsvExport;
+import org.opendatakit.thin.exports.ParallelCsvExport;
+import org.opendatakit.thin.ingest.IngestQueue;
 import org.opendatakit.thin.models.AbstractModel;
+import org.opendatakit.thin.models.AbstractModel.Outcome;
+import org.opendatakit.thin.models.QueryLog;
 import org.opendatakit.thin.models.Submission;
+import org.opendatakit.thin.xml.XmlDocuments;
 import org.sql2o.Connection;
 import org.sql2o.ResultSetIterable;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.sql2o.Sql2oException;
 import spark.Request;
 import spark.Response;
 
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
+
+import static java.net.HttpURLConnection.HTTP_ACCEPTED;
+import static java.net.HttpURLConnection.HTTP_CONFLICT;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 // At least for now, a controller is essentially just a class that encloses
 // static nested Action subclasses.
 public class SubmissionsController {
+	/*
+	GetFormSubmissions returns the submissions of a form. Without a format, it
+	returns a page of submissions as JSON. It also supports the following
+	formats, which stream every submission of the form:
+
+		csv     CSV with a column for each field (see CsvExport). If
+		        EXPORT_CACHE_DIR is set, the CSV is kept up to date on disk and
+		        sent from there (see CsvCache), unless another request is
+		        updating the file, in which case the CSV is streamed. If
+		        EXPORT_PARALLELISM is set instead, the CSV is rendered in
+		        chunks on several threads (see ParallelCsvExport).
+		json    A JSON array of submissions
+		ndjson  Newline-delimited JSON, with one submission per line
+
+	Responses carry an entity tag, so that a client can make a conditional
+	request with If-None-Match. If nothing has changed, the response is 304 Not
+	Modified. The entity tag of a JSON page is derived from the IDs and versions
+	of its submissions, so only the page is read to compute it. The entity tag of
+	a streamed format is derived from Submission.formVersion(), read in the same
+	snapshot as the submissions (or the CsvCache or ParallelCsvExport), so it
+	always describes the body; when it matches, no submission is streamed.
+
+	JSON pages are paginated by ID. The limit query parameter specifies
+	the maximum number of submissions to return (at most MAX_LIMIT), and the
+	after query parameter specifies the cursor of the page. If there may be more
+	submissions, the response includes the cursor of the next page in the
+	X-Next-Cursor header. Cursors are opaque to clients.
+	 */
 	public static class GetFormSubmissions extends Action {
-		private static final CharMatcher REQUIRES_QUOTES =
-			CharMatcher.anyOf(",\"\r\n");
+		private static final int MAX_LIMIT = 1000;
+		private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+		private static final BaseEncoding CURSOR_ENCODING =
+			BaseEncoding.base64Url().omitPadding();
+		// null if CSV exports are not cached
+		private static final CsvCache CSV_CACHE = Config.newCsvCache();
+		// null if CSV exports are rendered on the request thread
+		private static final ParallelCsvExport PARALLEL_CSV_EXPORT =
+			Config.newParallelCsvExport();
 
 		public GetFormSubmissions(Request request, Response response) {
 			super(request, response);
 		}
 
-		private List<String> streamHeaders(Submission template) {
-			List<String> headers = new ArrayList<>();
-			NodeList children = template.getXmlRoot().getChildNodes();
-			boolean first = true;
-			for (int i = 0; i < children.getLength(); i++) {
-				Node child = children.item(i);
-				if (child.getNodeType() != Node.ELEMENT_NODE)
-					continue;
-				String header = child.getNodeName();
-				headers.add(header);
-				if (!first)
-					stream(',');
-				stream(header);
-				first = false;
-			}
-			if (!headers.isEmpty())
-				stream('\n');
-			return headers;
-		}
-
-		// TODO: Handle additional problem characters.
-		private CharSequence escapeValue(String value) {
-			boolean requiresQuotes = REQUIRES_QUOTES.matchesAnyOf(value);
-			StringBuilder escaped = new StringBuilder();
-			if (requiresQuotes)
-				escaped.append('"');
-			escaped.append(value.replace("\"", "\"\""));
-			if (requiresQuotes)
-				escaped.append('"');
-			return escaped;
-		}
-
-		private void streamValue(Submission submission, String field) {
-			NodeList fieldNodes = submission.getXmlRoot().getElementsByTagName(field);
-			if (fieldNodes.getLength() == 0)
-				return;
-			String value = null;
-			NodeList contentNodes = fieldNodes.item(0).getChildNodes();
-			if (contentNodes.getLength() == 1) {
-				Node contentNode = contentNodes.item(0);
-				if (contentNode.getNodeType() == Node.TEXT_NODE)
-					value = contentNode.getTextContent();
+		static String encodeCursor(long id) {
+			return CURSOR_ENCODING.encode(Longs.toByteArray(id));
+		}
+
+		// Returns the ID that a cursor encodes, throwing an
+		// IllegalArgumentException if the cursor is invalid.
+		static long decodeCursor(String cursor) {
+			byte[] bytes = CURSOR_ENCODING.decode(cursor);
+			if (bytes.length != Longs.BYTES)
+				throw new IllegalArgumentException("invalid cursor");
+			return Longs.fromByteArray(bytes);
+		}
+
+		private String formTag(String formId, String format, String version) {
+			return entityTag("form", formId, String.valueOf(format),
+				request().queryString(), version);
+		}
+
+		private String jsonPage(String formId) {
+			int limit = MAX_LIMIT;
+			String limitParam = request().queryParams("limit");
+			if (limitParam != null) {
+				Integer parsed = Ints.tryParse(limitParam);
+				if (parsed == null || parsed < 1 || parsed > MAX_LIMIT)
+					return badRequest("Invalid limit");
+				limit = parsed;
 			}
-			else if (contentNodes.getLength() > 1) {
-				value = "(repeat group)";
+			Long afterId = null;
+			String after = request().queryParams("after");
+			if (after != null) {
+				try {
+					afterId = decodeCursor(after);
+				}
+				catch (IllegalArgumentException e) {
+					return badRequest("Invalid cursor");
+				}
 			}
-			if (value != null)
-				stream(escapeValue(value));
-		}
 
-		private void streamSubmission(Submission submission, List<String> fields) {
-			boolean first = true;
-			for (String field : fields) {
-				if (!first)
-					stream(',');
-				streamValue(submission, field);
-				first = false;
+			// Fetching one extra submission tells us whether there is a next page.
+			List<Submission> page =
+				Submission.pageForFormId(formId, afterId, limit + 1);
+			StringBuilder version = new StringBuilder();
+			for (Submission submission : page) {
+				version.append(submission.getId()).append(':')
+					.append(submission.getVersion()).append(',');
+			}
+			if (notModified(formTag(formId, null, version.toString())))
+				return "";
+			if (page.size() > limit) {
+				page = page.subList(0, limit);
+				response().header(NEXT_CURSOR_HEADER,
+					encodeCursor(page.get(limit - 1).getId()));
 			}
-			stream('\n');
+			return jsonResponse(page);
 		}
 
-		private void streamCsv(ResultSetIterable<Submission> submissions) {
+		// Streams the submissions as CSV. The columns are determined by the first
+		// submission (see CsvExport).
+		private void streamCsv(Iterable<Submission> submissions) {
 			Iterator<Submission> iterator = submissions.iterator();
 			if (!iterator.hasNext())
 				return;
 			Submission first = iterator.next();
-			List<String> headers = streamHeaders(first);
-			if (headers.isEmpty())
-				return;
-			streamSubmission(first, headers);
-			while (iterator.hasNext())
-				streamSubmission(iterator.next(), headers);
+			try {
+				CsvExport export = new CsvExport(CsvExport.headers(first.getXml()));
+				if (export.headers().isEmpty())
+					return;
+				export.writeHeaders(output());
+				export.writeRow(first.getXml(), output());
+				while (iterator.hasNext())
+					export.writeRow(iterator.next().getXml(), output());
+			}
+			catch (IOException | XMLStreamException e) {
+				throw new RuntimeException(e);
+			}
 		}
 
-		private void streamCsv(String formId) {
-			response().type("text/csv");
-			try (Connection connection = AbstractModel.connection()) {
+		// Streams the submissions of a form through a server-side cursor, so that
+		// memory use does not depend on the number of submissions. The form's
+		// version is read in the same snapshot, and nothing is streamed if the
+		// client already has it. Fetching from the cursor counts as time in the
+		// database (see QueryLog.timed()).
+		private void streamSubmissions(String formId, String format, String type,
+			Consumer<Iterable<Submission>> streamer) {
+			try (Connection connection = AbstractModel.snapshotTransaction()) {
+				String version = Submission.formVersion(connection, formId);
+				if (notModified(formTag(formId, format, version)))
+					return;
+				response().type(type);
 				try (ResultSetIterable<Submission> submissions =
 					Submission.forFormId(connection, formId)) {
-					streamCsv(submissions);
+					streamer.accept(QueryLog.timed(submissions));
+				}
+			}
+		}
+
+		private void streamCsv(String formId) {
+			String type = "text/csv; charset=utf-8";
+			if (CSV_CACHE == null && PARALLEL_CSV_EXPORT == null) {
+				streamSubmissions(formId, "csv", type, this::streamCsv);
+				return;
+			}
+			try {
+				if (CSV_CACHE != null) {
+					try (CsvCache.Export export = CSV_CACHE.open(formId)) {
+						// Another request is bringing the file up to date.
+						if (export == null) {
+							streamSubmissions(formId, "csv", type, this::streamCsv);
+							return;
+						}
+						if (notModified(formTag(formId, "csv", export.version())))
+							return;
+						response().type(type);
+						if (export.file() != null)
+							output().writeFile(export.file(), 0, export.length());
+					}
+				}
+				else {
+					try (ParallelCsvExport.Export export =
+						PARALLEL_CSV_EXPORT.open(formId)) {
+						if (notModified(formTag(formId, "csv", export.version())))
+							return;
+						response().type(type);
+						export.write(output());
+					}
+				}
+			}
+			catch (IOException | XMLStreamException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		// The first submission is flushed as soon as it is written, so that the
+		// response starts without waiting for the buffer to fill.
+		private void streamJsonArray(Iterable<Submission> submissions) {
+			try {
+				JsonWriter writer = jsonWriter();
+				writer.beginArray();
+				boolean first = true;
+				for (Submission submission : submissions) {
+					streamJson(submission, writer);
+					if (first)
+						output().flush();
+					first = false;
+				}
+				writer.endArray();
+				writer.flush();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void streamJsonArray(String formId) {
+			streamSubmissions(formId, "json", "application/json; charset=utf-8",
+				this::streamJsonArray);
+		}
+
+		private void streamNdjson(Iterable<Submission> submissions) {
+			try {
+				boolean first = true;
+				for (Submission submission : submissions) {
+					streamJsonLine(submission);
+					if (first)
+						output().flush();
+					first = false;
 				}
 			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void streamNdjson(String formId) {
+			streamSubmissions(formId, "ndjson", "application/x-ndjson; charset=utf-8",
+				this::streamNdjson);
 		}
 
 		public String body() {
@@ -115,11 +272,19 @@ public class SubmissionsController {
 			String formId = formIdWithFormat.param(),
 				format = formIdWithFormat.format();
 			if (format == null)
-				return jsonResponse(Submission.sampleForFormId(formId));
+				return jsonPage(formId);
 			else if (format.equals("csv")) {
 				streamCsv(formId);
 				return "";
 			}
+			else if (format.equals("json")) {
+				streamJsonArray(formId);
+				return "";
+			}
+			else if (format.equals("ndjson")) {
+				streamNdjson(formId);
+				return "";
+			}
 			else {
 				return invalidFormat();
 			}
@@ -132,49 +297,277 @@ public class SubmissionsController {
 		}
 
 		public String body() {
-			Submission submission = Submission.findByFormAndInstance(
-				request().params("formId"),
-				request().params("instanceId")
-			);
+			String formId = request().params("formId"),
+				instanceId = request().params("instanceId");
+			// Without the cache, the version is read first, so that the XML of an
+			// unchanged submission is not read. With the cache, the submission is
+			// looked up first, so that a hit does not query the database.
+			if (!Submission.isCached()) {
+				String version = Submission.instanceVersion(formId, instanceId);
+				if (version != null &&
+					notModified(entityTag("submission", formId, instanceId, version)))
+					return "";
+			}
+			Submission submission =
+				Submission.findByFormAndInstance(formId, instanceId);
 			if (submission == null)
 				return badRequest("Submission not found");
+			// The entity tag is that of the submission returned, which may differ
+			// from the version read above.
+			String version = submission.getId() + ":" + submission.getVersion();
+			if (notModified(entityTag("submission", formId, instanceId, version)))
+				return "";
 			return jsonResponse(submission);
 		}
 	}
 
+	/*
+	Create saves a submission. If the submission is saved synchronously, the
+	response is 200 once it is in the database. If an IngestQueue is configured
+	(see Config.ingest()), the response is 202 Accepted once the submission is in
+	the ingest log, or 503 Service Unavailable if it could not be written to the
+	log. Either way, the response is 409 Conflict if a submission with the same
+	formId and instanceId already exists.
+	 */
 	public static class Create extends Action {
 		public Create(Request request, Response response) {
 			super(request, response);
 		}
 
+		private String ingest(IngestQueue queue, Submission submission) {
+			if (!submission.isValid())
+				return badRequest("Failed to save submission");
+			switch (queue.submit(submission)) {
+				case ACCEPTED:
+					return respond(HTTP_ACCEPTED, "");
+				case DUPLICATE:
+					return respond(HTTP_CONFLICT, "Submission already exists");
+				case TOO_LARGE:
+					return respond(HTTP_ENTITY_TOO_LARGE, "Submission is too large");
+				default:
+					return respond(HTTP_UNAVAILABLE, "Failed to save submission");
+			}
+		}
+
 		public String body() {
+			if (!isRequestEncodingSupported())
+				return unsupportedEncoding();
+			// A submission that is appended to the ingest log must fit in a record.
+			IngestQueue queue = IngestQueue.current();
+			long maxLength = queue != null ?
+				Math.min(MAX_REQUEST_LENGTH, queue.maxSubmissionLength()) :
+				MAX_REQUEST_LENGTH;
 			Submission submission = new Submission();
-			submission.setXml(request().body());
-			if (submission.save())
-				return "";
-			else {
-				// TODO: Currently we always respond with a 400 error, but the save
-				// failure could be a 500 error. Can we use Sql2o to distinguish between
-				// the two?
-				return badRequest("Failed to save submission");
+			try {
+				submission.setXml(requestBody(maxLength));
+			}
+			catch (RequestTooLargeException e) {
+				return respond(HTTP_ENTITY_TOO_LARGE, "Submission is too large");
+			}
+			catch (IOException e) {
+				return badRequest("Invalid request body");
+			}
+			if (queue != null)
+				return ingest(queue, submission);
+			switch (submission.create()) {
+				case SAVED:
+					return "";
+				case CONFLICT:
+					return respond(HTTP_CONFLICT, "Submission already exists");
+				case INVALID:
+					return badRequest("Failed to save submission");
+				default:
+					return respond(HTTP_INTERNAL_ERROR, "Failed to save submission");
 			}
 		}
 	}
 
+	/*
+	CreateBatch saves multiple submissions in a single transaction. The request
+	body is either multipart/form-data with one submission per part, or a series
+	of concatenated XML documents (see XmlDocuments). Each submission is validated
+	separately, and the valid ones are inserted together. The response lists the
+	status of each submission in request order:
+
+		created    The submission was saved.
+		duplicate  A submission with the same formId and instanceId already exists,
+		           either in the database, in the ingest log (see IngestQueue),
+		           or earlier in the batch.
+		invalid    The submission is not valid XML or is missing its IDs.
+
+	A duplicate or invalid submission does not prevent the others from being
+	saved. Concatenated documents may be compressed (see Action.requestBody()),
+	but multipart bodies may not. Each part is decoded with the charset of its
+	own Content-Type, or UTF-8 if it has none.
+
+	The body may be at most Config.maxBatchSize() bytes long, and each part of a
+	multipart body at most MAX_REQUEST_LENGTH bytes; otherwise, the response is
+	413 Payload Too Large. Parts larger than FILE_SIZE_THRESHOLD are spooled to the
+	temporary directory while the body is read.
+	 */
+	public static class CreateBatch extends Action {
+		private static final String MULTIPART_CONFIG =
+			"org.eclipse.jetty.multipartConfig";
+		private static final long MAX_BATCH_SIZE = Config.maxBatchSize();
+		private static final int FILE_SIZE_THRESHOLD = 1024 * 1024;
+
+		private static class ItemStatus {
+			private final int index;
+			private final String formId, instanceId, status;
+
+			public ItemStatus(int index, Submission submission, String status) {
+				this.index = index;
+				this.formId = submission.getFormId();
+				this.instanceId = submission.getInstanceId();
+				this.status = status;
+			}
+		}
+
+		public CreateBatch(Request request, Response response) {
+			super(request, response);
+		}
+
+		private List<String> documents() throws IOException, ServletException {
+			String contentType = request().contentType();
+			if (contentType == null || !contentType.startsWith("multipart/"))
+				return XmlDocuments.split(requestBody(MAX_BATCH_SIZE));
+			if (isRequestCompressed())
+				throw new IOException("compressed multipart body");
+			HttpServletRequest raw = request().raw();
+			raw.setAttribute(MULTIPART_CONFIG, new MultipartConfigElement(
+				System.getProperty("java.io.tmpdir"), MAX_REQUEST_LENGTH,
+				MAX_BATCH_SIZE, FILE_SIZE_THRESHOLD));
+			List<String> documents = new ArrayList<>();
+			for (Part part : raw.getParts()) {
+				// Like a single body, each part is decoded with the charset of its
+				// Content-Type, or UTF-8 if it has none (see requestBody()).
+				Charset charset = charset(
+					MimeTypes.getCharsetFromContentType(part.getContentType()));
+				try (InputStream in = part.getInputStream()) {
+					documents.add(
+						CharStreams.toString(new InputStreamReader(in, charset)));
+				}
+			}
+			return documents;
+		}
+
+		public String body() {
+			if (!isRequestEncodingSupported())
+				return unsupportedEncoding();
+			List<String> documents;
+			try {
+				documents = documents();
+			}
+			catch (RequestTooLargeException e) {
+				return respond(HTTP_ENTITY_TOO_LARGE, "Batch is too large");
+			}
+			catch (IOException | ServletException e) {
+				return badRequest("Invalid batch");
+			}
+			// Jetty throws an IllegalStateException if the body or a part exceeds
+			// the limits of the MultipartConfigElement.
+			catch (IllegalStateException e) {
+				return respond(HTTP_ENTITY_TOO_LARGE, "Batch is too large");
+			}
+
+			// If an IngestQueue is configured, the keys of the valid submissions are
+			// reserved until they are inserted, and a submission whose key is
+			// pending in the ingest log is a duplicate.
+			IngestQueue queue = IngestQueue.current();
+			List<Submission> submissions = new ArrayList<>(documents.size());
+			List<Submission> valid = new ArrayList<>(documents.size());
+			boolean[] pending = new boolean[documents.size()];
+			for (int i = 0; i < documents.size(); i++) {
+				Submission submission = new Submission();
+				submission.setXml(documents.get(i));
+				submissions.add(submission);
+				if (!submission.isValid())
+					continue;
+				if (queue != null && !queue.reserve(submission))
+					pending[i] = true;
+				else
+					valid.add(submission);
+			}
+
+			boolean[] inserted;
+			try {
+				inserted = Submission.insertAll(valid);
+			}
+			catch (Sql2oException e) {
+				return respond(HTTP_INTERNAL_ERROR, "Failed to save submissions");
+			}
+			finally {
+				if (queue != null) {
+					for (Submission submission : valid)
+						queue.release(submission);
+				}
+			}
+
+			List<ItemStatus> statuses = new ArrayList<>(submissions.size());
+			int validIndex = 0;
+			for (int i = 0; i < submissions.size(); i++) {
+				Submission submission = submissions.get(i);
+				String status;
+				if (validIndex < valid.size() && valid.get(validIndex) == submission)
+					status = inserted[validIndex++] ? "created" : "duplicate";
+				else
+					status = pending[i] ? "duplicate" : "invalid";
+				statuses.add(new ItemStatus(i, submission, status));
+			}
+			return jsonResponse(statuses);
+		}
+	}
+
+	// Update replaces the XML of a submission in a single statement, without
+	// reading the submission first (see Submission.update()). If an IngestQueue
+	// is configured, the response is 409 Conflict while a submission with the
+	// new formId and instanceId is pending in the ingest log.
 	public static class Update extends Action {
 		public Update(Request request, Response response) {
 			super(request, response);
 		}
 
 		public String body() {
-			Submission submission = Submission.findByFormAndInstance(
-				request().params("formId"),
-				request().params("instanceId")
-			);
-			if (submission == null)
-				return badRequest("Submission not found");
-			submission.setXml(request().body());
-			return submission.save() ? "" : badRequest("Failed to update submission");
+			if (!isRequestEncodingSupported())
+				return unsupportedEncoding();
+			Submission submission = new Submission();
+			try {
+				submission.setXml(requestBody());
+			}
+			catch (RequestTooLargeException e) {
+				return respond(HTTP_ENTITY_TOO_LARGE, "Submission is too large");
+			}
+			catch (IOException e) {
+				return badRequest("Invalid request body");
+			}
+			IngestQueue queue = IngestQueue.current();
+			boolean reserved = false;
+			if (queue != null && submission.isValid()) {
+				if (!queue.reserve(submission))
+					return respond(HTTP_CONFLICT, "Submission is pending");
+				reserved = true;
+			}
+			Outcome outcome;
+			try {
+				outcome = submission.update(request().params("formId"),
+					request().params("instanceId"));
+			}
+			finally {
+				if (reserved)
+					queue.release(submission);
+			}
+			switch (outcome) {
+				case SAVED:
+					return "";
+				case NOT_FOUND:
+					return badRequest("Submission not found");
+				case CONFLICT:
+					return respond(HTTP_CONFLICT, "Submission already exists");
+				case INVALID:
+					return badRequest("Failed to update submission");
+				default:
+					return respond(HTTP_INTERNAL_ERROR, "Failed to update submission");
+			}
 		}
 	}
 }
@@ -0,0 +1,370 @@
+package org.opendatakit.thin.exports;
+
+import com.google.common.hash.Hashing;
+import org.opendatakit.thin.Application;
+import org.opendatakit.thin.models.AbstractModel;
+import org.opendatakit.thin.models.QueryLog;
+import org.opendatakit.thin.models.Submission;
+import org.sql2o.Connection;
+import org.sql2o.ResultSetIterable;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+CsvCache keeps the CSV export of each form that has been exported in a file on
+local disk, so that a form that has gained only a few submissions since its last
+export is not rendered again from scratch. Along with each file, it keeps in
+memory a high-water mark: the highest ID of the submissions in the file. It
+also keeps the number of those submissions and the sum of their versions.
+
+open() brings a form's file up to date, then returns the file. It first reads
+the maximum ID, the number, and the sum of the versions of the form's
+submissions (see Submission.idRange()). If they match the file's, nothing else
+is read. Otherwise, it reads the number and the sum of the versions of the
+submissions up to the mark. If those differ from the file's, a submission in
+the file was updated (every update increments its version) or deleted, or one
+with a lower ID was committed late, and the file is rebuilt. If not, the
+submissions above the mark are appended. Every step reads from the same
+snapshot of the database (see AbstractModel.snapshotTransaction()), so the
+counts and the rows agree, and the snapshot is closed as soon as the rows have
+been written.
+
+The rows are in order of ID, and the columns are determined by the submission
+with the lowest ID (see CsvExport). A rebuild writes a new file and renames it
+over the old one, and an append only adds to the end of the file, so a request
+that is already sending a file is not affected by either.
+
+The total size of the files is capped at maxBytes. Once the cap is exceeded,
+the files of the least recently exported forms are deleted, except for files
+that are being brought up to date. The marks are only kept in memory, so the
+directory is cleared when the cache is created.
+
+A CsvCache object is thread-safe. Requests for different forms proceed in
+parallel. Only one request at a time brings a form's file up to date: while it
+does, which for a rebuild of a large form may take a while, open() returns null
+to the other requests for the form rather than making them wait, and they
+should stream the export from the database instead.
+ */
+public class CsvCache {
+	private final Path directory;
+	private final long maxBytes;
+
+	// Entries in order of access, least recent first. Guarded by this.
+	private final LinkedHashMap<String, Entry> entries =
+		new LinkedHashMap<>(16, 0.75f, true);
+	// The total size of the files of the entries. Guarded by this.
+	private long totalBytes;
+
+	private static class Entry {
+		final String formId;
+		final Path path;
+		// Held while the file is brought up to date or deleted
+		final ReentrantLock lock = new ReentrantLock();
+
+		// The following fields are guarded by lock.
+		// False until the file has been built, and once it has been evicted
+		boolean built;
+		boolean evicted;
+		List<String> headers;
+		// The highest ID, the number, and the sum of the versions of the
+		// submissions in the file
+		long maxId;
+		long count;
+		long versionSum;
+		// Also read by evict() while lock is not held, so guarded by the cache
+		long length;
+
+		Entry(String formId, Path path) {
+			this.formId = formId;
+			this.path = path;
+		}
+	}
+
+	// The file of a form's export, open for reading, or null if the form has no
+	// submissions. The file may grow after it is opened, so only the first
+	// length bytes should be read. version is the form's version when the file
+	// was brought up to date (see Submission.formVersion()).
+	public static class Export implements AutoCloseable {
+		private final FileChannel file;
+		private final long length;
+		private final String version;
+
+		Export(FileChannel file, long length, String version) {
+			this.file = file;
+			this.length = length;
+			this.version = version;
+		}
+
+		public FileChannel file() {
+			return file;
+		}
+
+		public long length() {
+			return length;
+		}
+
+		public String version() {
+			return version;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (file != null)
+				file.close();
+		}
+	}
+
+	// Creates a cache in directory, creating the directory if it does not exist
+	// and deleting any CSV files that it contains.
+	public CsvCache(Path directory, long maxBytes) throws IOException {
+		if (directory == null)
+			throw new NullPointerException();
+		if (maxBytes < 0)
+			throw new IllegalArgumentException();
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files =
+			Files.newDirectoryStream(directory, "*.{csv,tmp}")) {
+			for (Path file : files)
+				Files.delete(file);
+		}
+	}
+
+	// Returns the number of bytes in the cache's files.
+	public synchronized long totalBytes() {
+		return totalBytes;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* entries */
+
+	// Returns the file name of a form's export. Form IDs may contain any
+	// characters, so the name is a hash of the form ID.
+	private Path path(String formId) {
+		return directory.resolve(Hashing.sha256()
+			.hashString(formId, StandardCharsets.UTF_8).toString() + ".csv");
+	}
+
+	private synchronized Entry entry(String formId) {
+		Entry entry = entries.get(formId);
+		if (entry == null) {
+			entry = new Entry(formId, path(formId));
+			entries.put(formId, entry);
+		}
+		return entry;
+	}
+
+	// Records a change in the length of an entry's file. The entry's lock must
+	// be held. (entries.get() is not used here, because it would count as an
+	// access.)
+	private synchronized void setLength(Entry entry, long length) {
+		if (!entry.evicted)
+			totalBytes += length - entry.length;
+		entry.length = length;
+	}
+
+	// Deletes the file of an entry, whose lock must be held, and removes the
+	// entry. The file is deleted first, so that it cannot belong to a new entry
+	// for the same form yet.
+	private void remove(Entry entry) {
+		try {
+			Files.deleteIfExists(entry.path);
+		}
+		catch (IOException e) {
+			Application.logger().warn("Could not delete {}: {}", entry.path,
+				e.getMessage());
+		}
+		setLength(entry, 0);
+		entry.evicted = true;
+		entry.built = false;
+		synchronized (this) {
+			entries.remove(entry.formId, entry);
+		}
+	}
+
+	/*
+	evict() deletes the files of the least recently used entries until the total
+	size is within maxBytes. Entries whose locks are held are skipped, so the
+	total may exceed maxBytes while a large export is being brought up to date.
+	 */
+	private void evict() {
+		List<Entry> candidates = new ArrayList<>();
+		synchronized (this) {
+			long excess = totalBytes - maxBytes;
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (excess > 0 && iterator.hasNext()) {
+				Entry entry = iterator.next();
+				candidates.add(entry);
+				excess -= entry.length;
+			}
+		}
+		for (Entry entry : candidates) {
+			if (totalBytes() <= maxBytes)
+				return;
+			if (!entry.lock.tryLock())
+				continue;
+			try {
+				if (!entry.evicted)
+					remove(entry);
+			}
+			finally {
+				entry.lock.unlock();
+			}
+		}
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* building */
+
+	// Writes the rows of the submissions with IDs from fromId to toId,
+	// exclusive, and updates the entry's mark. If the entry has no headers yet,
+	// they are determined by the first submission and written first.
+	private static void writeRows(Connection connection, Entry entry,
+		long fromId, long toId, Writer out)
+		throws IOException, XMLStreamException {
+		CsvExport export =
+			entry.headers != null ? new CsvExport(entry.headers) : null;
+		try (ResultSetIterable<Submission> submissions =
+			Submission.rangeForFormId(connection, entry.formId, fromId, toId)) {
+			for (Submission submission : QueryLog.timed(submissions)) {
+				String xml = submission.getXml();
+				if (export == null) {
+					entry.headers = CsvExport.headers(xml);
+					export = new CsvExport(entry.headers);
+					export.writeHeaders(out);
+				}
+				// As with a streamed export, a form whose first submission has no
+				// fields has no rows.
+				if (!entry.headers.isEmpty())
+					export.writeRow(xml, out);
+				entry.maxId = submission.getId();
+				entry.count++;
+				entry.versionSum += submission.getVersion();
+			}
+		}
+	}
+
+	// Writes the file from scratch to a temporary file, then renames it over the
+	// old one.
+	private static void rebuild(Connection connection, Entry entry, long[] range)
+		throws IOException, XMLStreamException {
+		entry.built = false;
+		entry.headers = null;
+		entry.maxId = 0;
+		entry.count = 0;
+		entry.versionSum = 0;
+		Path temporary =
+			entry.path.resolveSibling(entry.path.getFileName() + ".tmp");
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(
+			Files.newOutputStream(temporary), StandardCharsets.UTF_8))) {
+			writeRows(connection, entry, range[0], range[1] + 1, out);
+		}
+		catch (IOException | XMLStreamException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		if (entry.headers == null)
+			entry.headers = new ArrayList<>();
+		Files.move(temporary, entry.path, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		entry.built = true;
+	}
+
+	// Appends the submissions above the entry's mark.
+	private static void append(Connection connection, Entry entry, long maxId)
+		throws IOException, XMLStreamException {
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(
+			Files.newOutputStream(entry.path, StandardOpenOption.APPEND),
+			StandardCharsets.UTF_8))) {
+			writeRows(connection, entry, entry.maxId + 1, maxId + 1, out);
+		}
+	}
+
+	// Brings an entry's file up to date, returning the form's range of IDs (see
+	// Submission.idRange()), or null if the form has no submissions.
+	private long[] update(Entry entry) throws IOException, XMLStreamException {
+		try (Connection connection = AbstractModel.snapshotTransaction()) {
+			long[] range = Submission.idRange(connection, entry.formId);
+			if (range == null)
+				return null;
+			long maxId = range[1], count = range[2], versionSum = range[3];
+			if (entry.built && maxId == entry.maxId && count == entry.count &&
+				versionSum == entry.versionSum)
+				return range;
+			if (entry.built && maxId > entry.maxId) {
+				// The submissions that the file should already contain
+				long[] kept =
+					Submission.idRange(connection, entry.formId, entry.maxId + 1);
+				if (kept != null && kept[2] == entry.count &&
+					kept[3] == entry.versionSum) {
+					append(connection, entry, maxId);
+					return range;
+				}
+			}
+			rebuild(connection, entry, range);
+			return range;
+		}
+	}
+
+	/*
+	open() brings the export of a form up to date and opens it. The caller must
+	close the returned Export. open() returns null if another request is already
+	bringing the form's file up to date.
+	If open() fails, the form's file is deleted, so that the next request
+	rebuilds it.
+	 */
+	public Export open(String formId) throws IOException, XMLStreamException {
+		while (true) {
+			Entry entry = entry(formId);
+			Export export = null;
+			if (!entry.lock.tryLock())
+				return null;
+			try {
+				// The entry was evicted while we were waiting for its lock.
+				if (entry.evicted)
+					continue;
+				boolean succeeded = false;
+				try {
+					long[] range = update(entry);
+					if (range != null) {
+						FileChannel file = FileChannel.open(entry.path);
+						export = new Export(file, file.size(),
+							Submission.formVersion(range));
+						setLength(entry, export.length());
+					}
+					else {
+						remove(entry);
+						export = new Export(null, 0, Submission.formVersion(range));
+					}
+					succeeded = true;
+				}
+				finally {
+					if (!succeeded)
+						remove(entry);
+				}
+			}
+			finally {
+				entry.lock.unlock();
+			}
+			evict();
+			return export;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package org.opendatakit.thin.exports;
+
+import com.google.common.base.CharMatcher;
+import org.opendatakit.thin.xml.XmlParser;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+CsvExport renders submissions as CSV rows. The columns are the child elements of
+the root element of the first submission (see headers()). For each column, a row
+contains the value of the first element in the submission with the column's
+name, at any depth below the root:
+
+	- If the element contains a single text node, the value is the text.
+	- If the element contains more than one node, the value is "(repeat group)".
+	- Otherwise, the cell is empty.
+
+writeRow() reads each submission's XML once with a StAX reader, keeping track of
+only the elements that match a column. It does not build a DOM tree. Adjacent
+text events are merged, and CDATA sections, comments, and processing
+instructions are counted as separate nodes, so the output is the same as if the
+rules above were applied to a DOM tree.
+
+A CsvExport object is not thread-safe.
+ */
+public class CsvExport {
+	private static final CharMatcher REQUIRES_QUOTES = CharMatcher.anyOf(",\"\r\n");
+	private static final String REPEAT_GROUP = "(repeat group)";
+
+	// The state of an element that matches a column, while it is open.
+	private static class Match {
+		int field;
+		int children;
+		// True if the last child of the element is a text node.
+		boolean lastIsText;
+		// The text of the first child if that child is a text node.
+		final StringBuilder text = new StringBuilder();
+	}
+
+	private final List<String> headers;
+	// Maps each distinct header to its field index.
+	private final Map<String, Integer> fields;
+	// Maps each header to its field index.
+	private final int[] columns;
+
+	// The values of the fields for the current row. A value of null indicates
+	// that the field has not been found yet.
+	private final String[] values;
+	private final boolean[] found;
+	// open[depth] is the Match of the open element at that depth, or null if that
+	// element does not match a column. The root element has depth 1.
+	private Match[] open = new Match[16];
+	private final List<Match> spare = new ArrayList<>();
+
+	public CsvExport(List<String> headers) {
+		if (headers == null)
+			throw new NullPointerException();
+		this.headers = Collections.unmodifiableList(new ArrayList<>(headers));
+		fields = new HashMap<>();
+		columns = new int[headers.size()];
+		for (int i = 0; i < columns.length; i++) {
+			Integer field = fields.get(headers.get(i));
+			if (field == null) {
+				field = fields.size();
+				fields.put(headers.get(i), field);
+			}
+			columns[i] = field;
+		}
+		values = new String[fields.size()];
+		found = new boolean[fields.size()];
+	}
+
+	// Returns the names of the child elements of the root element of the
+	// specified XML, in document order.
+	public static List<String> headers(String xml) throws XMLStreamException {
+		List<String> headers = new ArrayList<>();
+		XMLStreamReader reader = XmlParser.streamReader(xml);
+		try {
+			int depth = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth == 2)
+						headers.add(XmlParser.qualifiedName(reader));
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return headers;
+	}
+
+	public List<String> headers() {
+		return headers;
+	}
+
+	// Writes the header row. Nothing is written if there are no headers.
+	public void writeHeaders(Appendable out) throws IOException {
+		if (headers.isEmpty())
+			return;
+		boolean first = true;
+		for (String header : headers) {
+			if (!first)
+				out.append(',');
+			out.append(header);
+			first = false;
+		}
+		out.append('\n');
+	}
+
+	// TODO: Handle additional problem characters.
+	static void writeEscaped(String value, Appendable out) throws IOException {
+		boolean requiresQuotes = REQUIRES_QUOTES.matchesAnyOf(value);
+		if (requiresQuotes)
+			out.append('"');
+		if (value.indexOf('"') < 0) {
+			out.append(value);
+		}
+		else {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"')
+					out.append('"');
+				out.append(c);
+			}
+		}
+		if (requiresQuotes)
+			out.append('"');
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* rows */
+
+	private Match openMatch(int depth, int field) {
+		if (depth >= open.length)
+			open = Arrays.copyOf(open, open.length * 2);
+		Match match = spare.isEmpty() ? new Match() : spare.remove(spare.size() - 1);
+		match.field = field;
+		match.children = 0;
+		match.lastIsText = false;
+		match.text.setLength(0);
+		open[depth] = match;
+		return match;
+	}
+
+	private void setOpen(int depth, Match match) {
+		if (depth >= open.length)
+			open = Arrays.copyOf(open, open.length * 2);
+		open[depth] = match;
+	}
+
+	private void closeMatch(Match match) {
+		if (match.children > 1)
+			values[match.field] = REPEAT_GROUP;
+		else if (match.children == 1 && match.lastIsText)
+			values[match.field] = match.text.toString();
+		spare.add(match);
+	}
+
+	// Records a child node other than a text node.
+	private static void addChild(Match parent) {
+		if (parent == null)
+			return;
+		parent.children++;
+		parent.lastIsText = false;
+	}
+
+	private static void addText(Match parent, XMLStreamReader reader) {
+		if (parent == null)
+			return;
+		if (!parent.lastIsText) {
+			parent.children++;
+			parent.lastIsText = true;
+		}
+		// Only the text of a single-child element is ever used.
+		if (parent.children == 1) {
+			parent.text.append(reader.getTextCharacters(), reader.getTextStart(),
+				reader.getTextLength());
+		}
+	}
+
+	private void readValues(String xml) throws XMLStreamException {
+		Arrays.fill(values, null);
+		Arrays.fill(found, false);
+		int remaining = found.length;
+		XMLStreamReader reader = XmlParser.streamReader(xml);
+		try {
+			int depth = 0;
+			// The number of open elements that match a column
+			int openMatches = 0;
+			while (reader.hasNext() && (remaining > 0 || openMatches > 0)) {
+				int event = reader.next();
+				Match parent = depth > 0 ? open[depth] : null;
+				switch (event) {
+					case XMLStreamConstants.START_ELEMENT:
+						addChild(parent);
+						depth++;
+						Integer field = null;
+						// The root element itself is never a match.
+						if (depth > 1)
+							field = fields.get(XmlParser.qualifiedName(reader));
+						if (field != null && !found[field]) {
+							found[field] = true;
+							remaining--;
+							openMatch(depth, field);
+							openMatches++;
+						}
+						else {
+							setOpen(depth, null);
+						}
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						if (parent != null) {
+							closeMatch(parent);
+							open[depth] = null;
+							openMatches--;
+						}
+						depth--;
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.SPACE:
+						addText(parent, reader);
+						break;
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.COMMENT:
+					case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					case XMLStreamConstants.ENTITY_REFERENCE:
+						addChild(parent);
+						break;
+					default:
+						break;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	// Writes the row for the specified XML.
+	public void writeRow(String xml, Appendable out)
+		throws IOException, XMLStreamException {
+		readValues(xml);
+		for (int i = 0; i < columns.length; i++) {
+			if (i != 0)
+				out.append(',');
+			String value = values[columns[i]];
+			if (value != null)
+				writeEscaped(value, out);
+		}
+		out.append('\n');
+	}
+}
@@ -0,0 +1,236 @@
+package org.opendatakit.thin.exports;
+
+import org.opendatakit.thin.models.AbstractModel;
+import org.opendatakit.thin.models.QueryLog;
+import org.opendatakit.thin.models.Submission;
+import org.sql2o.Connection;
+import org.sql2o.ResultSetIterable;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+ParallelCsvExport renders the CSV export of a form on several threads at once.
+It splits the form's range of IDs into chunks of about chunkSize submissions
+each, assuming that the IDs are spread evenly over the range. Each chunk is
+read through its own connection in a read transaction, then parsed and rendered
+on a thread of the executor. The chunks are written to the output in order of
+ID, so the rows are in the same order as the IDs of the submissions.
+
+At most maxInFlight chunks of a single export are being rendered or waiting to
+be written at once, so the memory that an export uses does not depend on the
+number of submissions. While the first chunk that has not been written is still
+being rendered, the export waits for it rather than starting another chunk.
+
+The columns are determined by the submission with the lowest ID (see
+CsvExport). The range of IDs and the headers are read in a snapshot transaction
+that stays open until the export is closed (see Export), so an export uses one
+connection besides those of its chunks. That transaction exports its snapshot,
+and each chunk is read in its own transaction that imports it (see
+AbstractModel.exportSnapshot()), so every chunk sees the form as of the moment
+the export was opened: an update or insert that commits during the export is
+not reflected in any chunk. Because every export holds a connection while its
+chunks check out others, the pool must have room for both (see
+Config.newParallelCsvExport()).
+
+A form with no more than chunkSize submissions is rendered on the calling
+thread, through the connection of the export's own transaction. A
+ParallelCsvExport object is thread-safe, and one object is shared by all
+requests.
+ */
+public class ParallelCsvExport {
+	private final ExecutorService executor;
+	private final int chunkSize;
+	private final int maxInFlight;
+
+	// A chunk of rendered rows
+	private static class Chunk {
+		final String csv;
+		// The time spent in the database while reading the chunk, and the time of
+		// its longest operation
+		final long databaseNanos;
+		final long maxDatabaseNanos;
+
+		Chunk(String csv, long databaseNanos, long maxDatabaseNanos) {
+			this.csv = csv;
+			this.databaseNanos = databaseNanos;
+			this.maxDatabaseNanos = maxDatabaseNanos;
+		}
+	}
+
+	public ParallelCsvExport(ExecutorService executor, int chunkSize,
+		int maxInFlight) {
+		if (executor == null)
+			throw new NullPointerException();
+		if (chunkSize < 1 || maxInFlight < 1)
+			throw new IllegalArgumentException();
+		this.executor = executor;
+		this.chunkSize = chunkSize;
+		this.maxInFlight = maxInFlight;
+	}
+
+	// Renders the submissions of a form whose IDs are at least fromId and less
+	// than toId, reading them through the specified connection.
+	private static String render(Connection connection, String formId,
+		List<String> headers, long fromId, long toId)
+		throws IOException, XMLStreamException {
+		CsvExport export = new CsvExport(headers);
+		StringBuilder csv = new StringBuilder();
+		try (ResultSetIterable<Submission> submissions =
+			Submission.rangeForFormId(connection, formId, fromId, toId)) {
+			for (Submission submission : QueryLog.timed(submissions))
+				export.writeRow(submission.getXml(), csv);
+		}
+		return csv.toString();
+	}
+
+	// Renders a chunk in its own transaction, as of the specified snapshot. The
+	// chunk's time in the database includes fetching its rows.
+	private static Chunk render(String snapshotId, String formId,
+		List<String> headers, long fromId, long toId)
+		throws IOException, XMLStreamException {
+		long databaseStart = QueryLog.threadNanos();
+		QueryLog.resetThreadMaxNanos();
+		String csv;
+		try (Connection connection =
+			AbstractModel.snapshotTransaction(snapshotId)) {
+			csv = render(connection, formId, headers, fromId, toId);
+		}
+		return new Chunk(csv, QueryLog.threadNanos() - databaseStart,
+			QueryLog.threadMaxNanos());
+	}
+
+	// Writes a chunk once it has been rendered. The chunk's time in the database
+	// is added to the calling thread's (see QueryLog.addThreadNanos()).
+	private static void write(Chunk chunk, Appendable out) throws IOException {
+		QueryLog.addThreadNanos(chunk.databaseNanos, chunk.maxDatabaseNanos);
+		out.append(chunk.csv);
+	}
+
+	private static void write(Future<Chunk> future, Appendable out)
+		throws IOException, XMLStreamException {
+		Chunk chunk;
+		try {
+			chunk = future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof XMLStreamException)
+				throw (XMLStreamException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		write(chunk, out);
+	}
+
+	/*
+	An Export is a CSV export of a form that has been opened but not yet written.
+	open() reads the form's range of IDs and the headers in a snapshot
+	transaction, so that version() describes the form as of the snapshot. The
+	Export holds the transaction's connection until it is closed, which keeps
+	the snapshot available to the chunks.
+	 */
+	public class Export implements AutoCloseable {
+		private final String formId;
+		private final Connection connection;
+		// null if the form has no submissions
+		private final long[] range;
+		private List<String> headers;
+
+		private Export(String formId) throws XMLStreamException {
+			this.formId = formId;
+			connection = AbstractModel.snapshotTransaction();
+			boolean succeeded = false;
+			try {
+				range = Submission.idRange(connection, formId);
+				if (range != null)
+					headers = headers(connection, formId, range[0]);
+				succeeded = true;
+			}
+			finally {
+				if (!succeeded)
+					connection.close();
+			}
+		}
+
+		// Returns the version of the form (see Submission.formVersion()).
+		public String version() {
+			return Submission.formVersion(range);
+		}
+
+		// Writes the export, including the header row. Nothing is written if the
+		// form has no submissions or the first submission has no fields.
+		public void write(Appendable out) throws IOException, XMLStreamException {
+			if (headers == null || headers.isEmpty())
+				return;
+			new CsvExport(headers).writeHeaders(out);
+			long minId = range[0], maxId = range[1], count = range[2];
+			long chunks = (count + chunkSize - 1) / chunkSize;
+			if (chunks == 1)
+				out.append(render(connection, formId, headers, minId, maxId + 1));
+			else
+				writeChunks(AbstractModel.exportSnapshot(connection), chunks, out);
+		}
+
+		private void writeChunks(String snapshotId, long chunks, Appendable out)
+			throws IOException, XMLStreamException {
+			long minId = range[0], maxId = range[1];
+			long width = (maxId - minId + chunks) / chunks;
+			Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+			try {
+				for (long fromId = minId; fromId <= maxId; fromId += width) {
+					if (inFlight.size() == maxInFlight)
+						ParallelCsvExport.write(inFlight.removeFirst(), out);
+					long from = fromId, to = Math.min(fromId + width, maxId + 1);
+					inFlight.addLast(executor.submit(() ->
+						render(snapshotId, formId, headers, from, to)));
+				}
+				while (!inFlight.isEmpty())
+					ParallelCsvExport.write(inFlight.removeFirst(), out);
+			}
+			finally {
+				// If the export failed, for example, because the client
+				// disconnected, the chunks that have not started are not rendered.
+				for (Future<Chunk> future : inFlight)
+					future.cancel(false);
+			}
+		}
+
+		@Override
+		public void close() {
+			connection.close();
+		}
+	}
+
+	// Returns the headers determined by the submission with the specified ID.
+	private static List<String> headers(Connection connection, String formId,
+		long id) throws XMLStreamException {
+		try (ResultSetIterable<Submission> first =
+			Submission.rangeForFormId(connection, formId, id, id + 1)) {
+			Iterator<Submission> iterator = first.iterator();
+			return iterator.hasNext() ?
+				CsvExport.headers(iterator.next().getXml()) : null;
+		}
+	}
+
+	// Opens the CSV export of a form. The caller must close the returned Export.
+	public Export open(String formId) throws XMLStreamException {
+		return new Export(formId);
+	}
+}
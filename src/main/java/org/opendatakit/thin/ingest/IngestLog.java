@@ -0,0 +1,470 @@
+package org.opendatakit.thin.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/*
+IngestLog is a durable, append-only log of records, stored in a directory as a
+series of memory-mapped segment files of a fixed size. Each record is written
+as its length, the CRC-32 of its contents, and its contents:
+
+	[int length][int crc][length bytes]
+
+A record never spans segments: if it does not fit in the rest of the current
+segment, it starts the next one. The unused end of a segment is zero-filled,
+and a length of zero marks it.
+
+A position in the log is a byte offset across all segments, so segment n covers
+positions [n * segmentSize, (n + 1) * segmentSize). append() returns the
+position just past the new record, and sync(position) returns once every record
+before that position is on disk. Concurrent calls to sync() are grouped: one
+thread forces the segments to disk on behalf of every thread that is waiting,
+so a single fsync covers every record appended in the meantime.
+
+The checkpoint is the position of the first record that has not been consumed.
+It is stored in its own file, and segments that lie entirely before it are
+deleted once the file is on disk. If the file is missing or unreadable, the log
+starts at its first segment, and the records that were consumed are read
+again. When the log is opened, it scans the records after the checkpoint,
+checking their CRCs. The log ends at the first record that is incomplete or
+corrupt, which can only be a record that was never synced, and the rest of that
+segment is cleared.
+
+Only records that have been synced are returned by read().
+ */
+public class IngestLog implements Closeable {
+	private static final int HEADER_SIZE = 8;
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final Pattern SEGMENT_FILE =
+		Pattern.compile("(\\d{20})\\.segment");
+
+	private static class Segment {
+		final long id;
+		final Path path;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		Segment(long id, Path path, int size) throws IOException {
+			this.id = id;
+			this.path = path;
+			channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signaled whenever syncedPosition advances
+	private final Condition synced = lock.newCondition();
+	// Maps segment IDs to open segments.
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	// Segments that have been written since they were last forced to disk
+	private final List<Segment> unsynced = new ArrayList<>();
+	private long writePosition;
+	private long syncedPosition;
+	// True while a thread is forcing segments to disk
+	private boolean syncing;
+	private long checkpoint;
+	private boolean closed;
+
+	public IngestLog(Path directory, int segmentSize) throws IOException {
+		if (segmentSize <= HEADER_SIZE)
+			throw new IllegalArgumentException("segment size is too small");
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+		open();
+	}
+
+	// Returns the maximum length of a record.
+	public int maxRecordLength() {
+		return segmentSize - HEADER_SIZE;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* recovery */
+
+	private static String segmentFileName(long id) {
+		return String.format("%020d.segment", id);
+	}
+
+	private Segment openSegment(long id) throws IOException {
+		Segment segment =
+			new Segment(id, directory.resolve(segmentFileName(id)), segmentSize);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private void open() throws IOException {
+		List<Long> ids = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Matcher matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+				if (matcher.matches())
+					ids.add(Long.parseLong(matcher.group(1)));
+			}
+		}
+		ids.sort(null);
+
+		checkpoint = readCheckpoint();
+		if (checkpoint < 0)
+			checkpoint = ids.isEmpty() ? 0 : ids.get(0) * segmentSize;
+
+		long first = checkpoint / segmentSize;
+		for (long id : ids) {
+			if (id < first)
+				Files.delete(directory.resolve(segmentFileName(id)));
+			else
+				openSegment(id);
+		}
+		if (segments.isEmpty())
+			openSegment(first);
+
+		writePosition = recover();
+		syncedPosition = writePosition;
+	}
+
+	// Returns the position stored in the checkpoint file, or -1 if the file is
+	// missing or unreadable.
+	private long readCheckpoint() throws IOException {
+		Path file = directory.resolve(CHECKPOINT_FILE);
+		if (!Files.exists(file))
+			return -1;
+		String text =
+			new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+		try {
+			long position = Long.parseLong(text);
+			return position >= 0 ? position : -1;
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Scans the records after the checkpoint, returning the position where the
+	// log ends. Segments after that position are deleted, and the rest of the
+	// last segment is cleared.
+	private long recover() throws IOException {
+		long position = Math.max(checkpoint, segments.firstKey() * segmentSize);
+		while (true) {
+			Segment segment = segments.get(position / segmentSize);
+			if (segment == null)
+				break;
+			int offset = (int) (position % segmentSize);
+			int length = recordLength(segment, offset);
+			if (length > 0) {
+				if (!isIntact(segment, offset, length))
+					break;
+				position += HEADER_SIZE + length;
+			}
+			else if (length == 0 && segments.containsKey(segment.id + 1)) {
+				position = (segment.id + 1) * segmentSize;
+			}
+			else {
+				break;
+			}
+		}
+
+		long lastId = position / segmentSize;
+		Iterator<Map.Entry<Long, Segment>> iterator =
+			segments.tailMap(lastId, false).entrySet().iterator();
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next().getValue();
+			segment.close();
+			Files.delete(segment.path);
+			iterator.remove();
+		}
+		Segment last = segments.get(lastId);
+		if (last == null)
+			last = openSegment(lastId);
+		// Only bytes that are not already zero are cleared, so that the pages of
+		// an unused segment are not dirtied.
+		for (int i = (int) (position % segmentSize); i < segmentSize; i++) {
+			if (last.buffer.get(i) != 0)
+				last.buffer.put(i, (byte) 0);
+		}
+		last.buffer.force();
+		return position;
+	}
+
+	// Returns the length of the record at the specified offset of a segment, 0 if
+	// there is no record there, or -1 if the length is invalid.
+	private int recordLength(Segment segment, int offset) {
+		if (segmentSize - offset < HEADER_SIZE)
+			return 0;
+		int length = segment.buffer.getInt(offset);
+		if (length < 0 || length > segmentSize - offset - HEADER_SIZE)
+			return -1;
+		return length;
+	}
+
+	private static int crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] contents(Segment segment, int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(offset + HEADER_SIZE);
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static boolean isIntact(Segment segment, int offset, int length) {
+		return segment.buffer.getInt(offset + 4) ==
+			crc(contents(segment, offset, length));
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* writing */
+
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new IOException("IngestLog is closed");
+	}
+
+	// Appends a record to the log, returning the position just past the end of
+	// the record. The record is not durable until sync() is called with that
+	// position.
+	public long append(byte[] record) throws IOException {
+		if (record.length == 0 || record.length > maxRecordLength())
+			throw new IllegalArgumentException("invalid record length");
+		int crc = crc(record);
+		lock.lock();
+		try {
+			ensureOpen();
+			long id = writePosition / segmentSize;
+			int offset = (int) (writePosition % segmentSize);
+			if (segmentSize - offset < HEADER_SIZE + record.length) {
+				id++;
+				offset = 0;
+			}
+			Segment segment = segments.get(id);
+			if (segment == null)
+				segment = openSegment(id);
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(offset);
+			buffer.putInt(record.length).putInt(crc).put(record);
+			if (!unsynced.contains(segment))
+				unsynced.add(segment);
+			writePosition = id * segmentSize + offset + HEADER_SIZE + record.length;
+			return writePosition;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Returns once every record before the specified position is on disk.
+	public void sync(long position) throws IOException {
+		lock.lock();
+		try {
+			while (syncedPosition < position) {
+				ensureOpen();
+				if (syncing) {
+					synced.awaitUninterruptibly();
+					continue;
+				}
+				syncing = true;
+				long target = writePosition;
+				List<Segment> forcing = new ArrayList<>(unsynced);
+				unsynced.clear();
+				lock.unlock();
+				boolean forced = false;
+				try {
+					// Segments are forced in order, so a crash cannot leave a synced
+					// record behind a record that was lost.
+					for (Segment segment : forcing)
+						segment.buffer.force();
+					forced = true;
+				}
+				finally {
+					lock.lock();
+					syncing = false;
+					if (forced)
+						syncedPosition = Math.max(syncedPosition, target);
+					else
+						unsynced.addAll(0, forcing);
+					synced.signalAll();
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* reading */
+
+	// Waits until there are synced records after the specified position or the
+	// timeout elapses, returning true if there are.
+	public boolean awaitRecords(long position, long timeout, TimeUnit unit)
+		throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (syncedPosition <= position && !closed) {
+				if (nanos <= 0)
+					return false;
+				nanos = synced.awaitNanos(nanos);
+			}
+			return syncedPosition > position;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	read() reads up to maxRecords synced records, starting at the specified
+	position, and adds their contents to records. It returns the position after
+	the last record read, which is where the next read should start.
+	 */
+	public long read(long position, int maxRecords, List<byte[]> records) {
+		long limit;
+		lock.lock();
+		try {
+			limit = syncedPosition;
+		}
+		finally {
+			lock.unlock();
+		}
+		int count = 0;
+		while (position < limit && count < maxRecords) {
+			Segment segment;
+			lock.lock();
+			try {
+				segment = segments.get(position / segmentSize);
+			}
+			finally {
+				lock.unlock();
+			}
+			// The log has been closed.
+			if (segment == null)
+				break;
+			int offset = (int) (position % segmentSize);
+			int length = recordLength(segment, offset);
+			if (length <= 0) {
+				// The rest of the segment is unused.
+				position = (segment.id + 1) * segmentSize;
+				continue;
+			}
+			records.add(contents(segment, offset, length));
+			position += HEADER_SIZE + length;
+			count++;
+		}
+		return position;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* checkpoints */
+
+	public long checkpoint() {
+		lock.lock();
+		try {
+			return checkpoint;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	checkpoint() records that every record before the specified position has been
+	consumed, then deletes the segments that are no longer needed. The new file is
+	forced to disk before it replaces the old one, and the directory is forced
+	before any segment is deleted, so a crash leaves either checkpoint intact. If
+	the new checkpoint is lost, the records after the previous one are read
+	again.
+	 */
+	public void checkpoint(long position) throws IOException {
+		Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary,
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer bytes = ByteBuffer.wrap(
+				Long.toString(position).getBytes(StandardCharsets.US_ASCII));
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+			channel.force(true);
+		}
+		Files.move(temporary, directory.resolve(CHECKPOINT_FILE),
+			StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel channel =
+			FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+
+		List<Segment> obsolete = new ArrayList<>();
+		lock.lock();
+		try {
+			checkpoint = position;
+			long first = Math.min(position, writePosition) / segmentSize;
+			Iterator<Segment> iterator =
+				segments.headMap(first, false).values().iterator();
+			while (iterator.hasNext()) {
+				Segment segment = iterator.next();
+				if (unsynced.contains(segment))
+					continue;
+				obsolete.add(segment);
+				iterator.remove();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		for (Segment segment : obsolete) {
+			segment.close();
+			Files.deleteIfExists(segment.path);
+		}
+	}
+
+	// Closes the segment files. Records that have been appended but not synced
+	// may be lost.
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			synced.signalAll();
+			for (Segment segment : segments.values())
+				segment.close();
+			segments.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
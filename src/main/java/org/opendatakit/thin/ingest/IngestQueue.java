@@ -0,0 +1,279 @@
+package org.opendatakit.thin.ingest;
+
+import org.opendatakit.thin.Application;
+import org.opendatakit.thin.models.Submission;
+import org.sql2o.Sql2oException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+IngestQueue saves submissions in write-behind mode. submit() appends a
+submission to an IngestLog and returns once the log has been synced to disk,
+so that the submission can be acknowledged without waiting for the database.
+A background writer drains the log into the database, inserting the
+submissions of up to batchSize records in each transaction, then checkpoints
+the log. While a transaction is in progress, new submissions accumulate in the
+log, so the batches grow with the load.
+
+Before a submission is acknowledged, submit() checks that its formId and
+instanceId are unique: they must not be pending, that is, in the log but not
+yet in the database, and they must not be in the database. Pending keys are
+reserved in memory, and they are released only once the writer has committed
+them. When the queue is created, the keys of the records after the checkpoint
+are reserved again, and the writer replays those records. Replaying a record
+that was already inserted has no effect, because the writer skips conflicting
+rows. Writes that bypass the queue reserve their keys instead (see reserve()),
+so that submit() does not accept a submission that one of them is saving.
+
+Until the writer has committed a submission, it is not visible to reads.
+ */
+public class IngestQueue implements AutoCloseable {
+	private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private static volatile IngestQueue current;
+
+	public enum Result {
+		ACCEPTED,
+		// A submission with the same formId and instanceId is pending or saved.
+		DUPLICATE,
+		TOO_LARGE,
+		// The submission could not be written to the log, or the writer has
+		// stopped (see failed()).
+		FAILED
+	}
+
+	private final IngestLog log;
+	private final int batchSize;
+	private final Set<List<String>> pending = ConcurrentHashMap.newKeySet();
+	// The number of reservations of each key that is reserved (see reserve())
+	private final Map<List<String>, Integer> reserved = new ConcurrentHashMap<>();
+	private final Thread writer;
+	private volatile boolean stopped;
+	// True once the writer has stopped because of an error
+	private volatile boolean failed;
+
+	public IngestQueue(IngestLog log, int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batch size must be positive");
+		this.log = log;
+		this.batchSize = batchSize;
+		writer = new Thread(this::drain, "ingest-writer");
+		writer.setDaemon(true);
+		reservePending();
+	}
+
+	// Returns the queue that Create uses, or null if submissions are saved
+	// synchronously.
+	public static IngestQueue current() {
+		return current;
+	}
+
+	public static void setCurrent(IngestQueue queue) {
+		current = queue;
+	}
+
+	private static List<String> key(Submission submission) {
+		return Arrays.asList(submission.getFormId(), submission.getInstanceId());
+	}
+
+	private static Submission parse(byte[] record) {
+		Submission submission = new Submission();
+		submission.setXml(new String(record, StandardCharsets.UTF_8));
+		return submission;
+	}
+
+	// Reserves the keys of the records that have not been written to the
+	// database yet.
+	private void reservePending() {
+		long position = log.checkpoint();
+		List<byte[]> records = new ArrayList<>();
+		int replayed = 0;
+		while (true) {
+			records.clear();
+			long next = log.read(position, batchSize, records);
+			if (records.isEmpty())
+				break;
+			for (byte[] record : records)
+				pending.add(key(parse(record)));
+			replayed += records.size();
+			position = next;
+		}
+		if (replayed > 0)
+			Application.logger().info("Replaying {} submissions from the ingest log",
+				replayed);
+	}
+
+	// Starts the writer.
+	public void start() {
+		writer.start();
+	}
+
+	// Returns the length in bytes of the largest submission that fits in a
+	// record of the log.
+	public int maxSubmissionLength() {
+		return log.maxRecordLength();
+	}
+
+	/*
+	submit() appends a valid submission to the log and waits for the log to be
+	synced. If submit() returns ACCEPTED, the submission will be written to the
+	database, even if the server restarts first.
+	 */
+	public Result submit(Submission submission) {
+		if (failed)
+			return Result.FAILED;
+		byte[] record = submission.getXml().getBytes(StandardCharsets.UTF_8);
+		if (record.length > log.maxRecordLength())
+			return Result.TOO_LARGE;
+		List<String> key = key(submission);
+		if (!pending.add(key))
+			return Result.DUPLICATE;
+		boolean accepted = false;
+		try {
+			if (reserved.containsKey(key))
+				return Result.DUPLICATE;
+			if (Submission.instanceVersion(submission.getFormId(),
+				submission.getInstanceId()) != null)
+				return Result.DUPLICATE;
+			log.sync(log.append(record));
+			accepted = true;
+			return Result.ACCEPTED;
+		}
+		catch (IOException e) {
+			Application.logger().error("Could not write to the ingest log", e);
+			return Result.FAILED;
+		}
+		finally {
+			if (!accepted)
+				pending.remove(key);
+		}
+	}
+
+	/*
+	reserve() reserves the formId and instanceId of a valid submission that is
+	about to be written to the database directly rather than through the queue,
+	for example, by CreateBatch. It returns false if they are pending. Otherwise,
+	submit() treats them as pending until the caller calls release(), which it
+	must do once the write has committed or failed. A key may be reserved more
+	than once at a time, for example, by concurrent updates of the same
+	submission. Without a reservation, the
+	writer would later skip a submission that submit() had accepted, because a
+	direct write had taken its key.
+	 */
+	public boolean reserve(Submission submission) {
+		List<String> key = key(submission);
+		reserved.merge(key, 1, Integer::sum);
+		// submit() adds its key to pending before checking reserved, so either it
+		// sees this reservation, or this sees its key.
+		if (pending.contains(key)) {
+			release(submission);
+			return false;
+		}
+		return true;
+	}
+
+	public void release(Submission submission) {
+		reserved.computeIfPresent(key(submission),
+			(key, count) -> count > 1 ? count - 1 : null);
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* writer */
+
+	// Inserts a batch, retrying with exponential backoff until it succeeds or
+	// the queue is stopped. Returns false if the queue was stopped.
+	private boolean insert(List<Submission> submissions)
+		throws InterruptedException {
+		long backoff = 100;
+		while (!stopped) {
+			try {
+				boolean[] inserted = Submission.insertAll(submissions);
+				for (int i = 0; i < inserted.length; i++) {
+					if (!inserted[i]) {
+						Application.logger().info(
+							"Skipped ingested submission {}: already saved",
+							key(submissions.get(i)));
+					}
+				}
+				return true;
+			}
+			catch (Sql2oException e) {
+				Application.logger().warn(
+					"Could not write ingested submissions; retrying in {} ms", backoff,
+					e);
+				Thread.sleep(backoff);
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+			}
+		}
+		return false;
+	}
+
+	private void drain() {
+		long position = log.checkpoint();
+		List<byte[]> records = new ArrayList<>();
+		try {
+			while (!stopped) {
+				records.clear();
+				long next = log.read(position, batchSize, records);
+				if (records.isEmpty()) {
+					log.awaitRecords(position, 1, TimeUnit.SECONDS);
+					continue;
+				}
+				List<Submission> submissions = new ArrayList<>(records.size());
+				for (byte[] record : records) {
+					Submission submission = parse(record);
+					// Records are validated before they are appended, so this should
+					// never happen.
+					if (!submission.isValid()) {
+						Application.logger().error("Skipped invalid ingested submission");
+						continue;
+					}
+					submissions.add(submission);
+				}
+				if (!insert(submissions))
+					break;
+				log.checkpoint(next);
+				for (Submission submission : submissions)
+					pending.remove(key(submission));
+				position = next;
+			}
+		}
+		catch (InterruptedException e) {
+			// The queue is being closed.
+		}
+		catch (IOException | RuntimeException e) {
+			failed = true;
+			Application.logger().error(
+				"The ingest writer stopped; new submissions will be rejected", e);
+		}
+	}
+
+	/*
+	failed() returns true if the writer has stopped because of an error, for
+	example, because the checkpoint could not be written. Accepted submissions
+	would then never reach the database, so submit() rejects new ones until the
+	server is restarted, which replays the log.
+	 */
+	public boolean failed() {
+		return failed;
+	}
+
+	// Stops the writer and closes the log. Submissions that have been accepted
+	// but not written to the database are written when the queue is next
+	// created.
+	@Override
+	public void close() throws IOException, InterruptedException {
+		stopped = true;
+		writer.interrupt();
+		writer.join();
+		log.close();
+	}
+}
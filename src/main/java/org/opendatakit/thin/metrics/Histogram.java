@@ -0,0 +1,102 @@
+package org.opendatakit.thin.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Histogram records the distribution of non-negative long values, for example,
+durations in nanoseconds. Like HdrHistogram, it counts values in buckets whose
+width grows with the value: values below 32 have a bucket each, and every
+power of two above that is divided into 16 buckets of equal width, so a
+percentile is accurate to within 1/16 (6.25%) of its value. The full range of
+long is covered by a fixed set of 960 buckets.
+
+record() is lock-free: it increments a bucket of an AtomicLongArray and adds
+to striped counters, so concurrent threads never wait for each other. The
+statistics are read without stopping recording, so a percentile read while
+values are being recorded reflects some but not necessarily all of them.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values below LINEAR have a bucket each.
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS =
+		LINEAR + (Long.SIZE - 1 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+	// Returns the index of the bucket that contains a value.
+	static int bucket(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return LINEAR + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// Returns the largest value in a bucket.
+	static long highestValue(int bucket) {
+		if (bucket < LINEAR)
+			return bucket;
+		int octave = (bucket - LINEAR) / SUB_BUCKETS;
+		long mantissa = SUB_BUCKETS + (bucket - LINEAR) % SUB_BUCKETS;
+		int shift = octave + 1;
+		long lowest = mantissa << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	// Records a value. Negative values are recorded as 0.
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public long sum() {
+		return sum.sum();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	/*
+	percentile() returns the value at the specified percentile, between 0 and
+	100, or 0 if no values have been recorded. The value is the largest value of
+	the bucket that contains the percentile, capped at the largest value
+	recorded.
+	 */
+	public long percentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be from 0 to 100");
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), max());
+		}
+		return max();
+	}
+}
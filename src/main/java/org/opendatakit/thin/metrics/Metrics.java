@@ -0,0 +1,251 @@
+package org.opendatakit.thin.metrics;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.opendatakit.thin.ConcurrencyLimit;
+import org.opendatakit.thin.PoolMetrics;
+import org.opendatakit.thin.models.QueryLog;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+Metrics collects the application's metrics and writes them in the Prometheus
+text exposition format (see MetricsController). It records:
+
+	- the latency of each request by method, route, and status class, for
+	  example, 2xx (see Router)
+	- the time that each request spends in the database, by method and route
+	- the number of bytes that each route streams, before compression
+	- the time spent parsing submission XML and serializing JSON, including
+	  JSON that is streamed, but not the time spent writing it to the client
+	- the size of Jetty's thread pool and of its queue of waiting jobs
+	- the connection pool's counts (see PoolMetrics)
+	- the limit, requests in progress, and rejections of each class of requests
+	  under admission control (see ConcurrencyLimit)
+
+Durations are recorded in nanoseconds in Histograms and reported in seconds as
+Prometheus summaries. Recording is lock-free: the histograms of a route are
+looked up with ConcurrentHashMap.get(), which does not lock, and are only
+created once per label set.
+ */
+public class Metrics {
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	public static final Histogram XML_PARSE = new Histogram();
+	public static final Histogram JSON_SERIALIZATION = new Histogram();
+
+	// Keys are lists of label values.
+	private static final ConcurrentMap<List<String>, Histogram> REQUESTS =
+		new ConcurrentHashMap<>();
+	private static final ConcurrentMap<List<String>, Histogram> DATABASE =
+		new ConcurrentHashMap<>();
+	private static final ConcurrentMap<List<String>, LongAdder> BYTES =
+		new ConcurrentHashMap<>();
+
+	private static volatile ThreadPool threadPool;
+	private static final List<ConcurrencyLimit> LIMITS =
+		new CopyOnWriteArrayList<>();
+
+	// Returns the value of a key, creating it if necessary. Once the value
+	// exists, get() does not lock.
+	private static <V> V get(ConcurrentMap<List<String>, V> map,
+		List<String> key, Supplier<V> create) {
+		V value = map.get(key);
+		return value != null ? value : map.computeIfAbsent(key, k -> create.get());
+	}
+
+	// Returns the status class of an HTTP status, for example, 2xx.
+	static String statusClass(int status) {
+		return status >= 100 && status < 600 ? (status / 100) + "xx" : "other";
+	}
+
+	// Records a request. route is the path pattern of the route, not the path of
+	// the request.
+	public static void request(String method, String route, int status,
+		long nanos, long databaseNanos, long bytes) {
+		List<String> key = Arrays.asList(method, route);
+		get(REQUESTS, Arrays.asList(method, route, statusClass(status)),
+			Histogram::new).record(nanos);
+		get(DATABASE, key, Histogram::new).record(databaseNanos);
+		if (bytes > 0)
+			get(BYTES, key, LongAdder::new).add(bytes);
+	}
+
+	// Sets the thread pool of the embedded Jetty server (see
+	// Config.threadPool()). Only a QueuedThreadPool reports busy threads, its
+	// maximum size, and its queue.
+	public static void setThreadPool(ThreadPool pool) {
+		threadPool = pool;
+	}
+
+	// Adds a ConcurrencyLimit (see Config.newConcurrencyLimit()).
+	public static void addConcurrencyLimit(ConcurrencyLimit limit) {
+		LIMITS.add(limit);
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* Prometheus */
+
+	private static String escape(String value) {
+		return value
+			.replace("\\", "\\\\")
+			.replace("\"", "\\\"")
+			.replace("\n", "\\n");
+	}
+
+	private static String labels(String[] names, List<String> values) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			builder.append(i == 0 ? "{" : ",")
+				.append(names[i])
+				.append("=\"")
+				.append(escape(values.get(i)))
+				.append('"');
+		}
+		return builder.length() > 0 ? builder.append('}').toString() : "";
+	}
+
+	private static double seconds(long nanos) {
+		return (double) nanos / TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private static void header(Appendable out, String name, String type,
+		String help) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(Appendable out, String name, String labels,
+		double value) throws IOException {
+		out.append(name).append(labels).append(' ')
+			.append(value == (long) value ? Long.toString((long) value) :
+				Double.toString(value))
+			.append('\n');
+	}
+
+	// Adds a label to a set of labels, which may be empty.
+	private static String withLabel(String labels, String label) {
+		return labels.isEmpty() ? "{" + label + "}" :
+			labels.substring(0, labels.length() - 1) + "," + label + "}";
+	}
+
+	private static void summary(Appendable out, String name, String labels,
+		Histogram histogram) throws IOException {
+		for (double quantile : QUANTILES) {
+			sample(out, name, withLabel(labels, "quantile=\"" + quantile + "\""),
+				seconds(histogram.percentile(quantile * 100)));
+		}
+		sample(out, name + "_sum", labels, seconds(histogram.sum()));
+		sample(out, name + "_count", labels, histogram.count());
+	}
+
+	private static void summaries(Appendable out, String name, String help,
+		String[] labelNames, Map<List<String>, Histogram> histograms)
+		throws IOException {
+		header(out, name, "summary", help);
+		for (Map.Entry<List<String>, Histogram> entry : histograms.entrySet()) {
+			summary(out, name, labels(labelNames, entry.getKey()),
+				entry.getValue());
+		}
+	}
+
+	private static void gauge(Appendable out, String name, String help,
+		double value) throws IOException {
+		header(out, name, "gauge", help);
+		sample(out, name, "", value);
+	}
+
+	// Writes every metric in the Prometheus text format, version 0.0.4.
+	public static void writePrometheus(Appendable out) throws IOException {
+		String[] route = {"method", "route"};
+		summaries(out, "thin_http_request_duration_seconds",
+			"Latency of requests by route and status class.",
+			new String[] {"method", "route", "status"}, REQUESTS);
+		summaries(out, "thin_http_request_database_seconds",
+			"Time that requests spent checking out connections and executing " +
+			"statements.", route, DATABASE);
+
+		header(out, "thin_http_response_bytes_total", "counter",
+			"Bytes streamed by route, before compression.");
+		for (Map.Entry<List<String>, LongAdder> entry : BYTES.entrySet()) {
+			sample(out, "thin_http_response_bytes_total",
+				labels(route, entry.getKey()), entry.getValue().sum());
+		}
+
+		header(out, "thin_xml_parse_seconds", "summary",
+			"Time spent parsing submission XML.");
+		summary(out, "thin_xml_parse_seconds", "", XML_PARSE);
+		header(out, "thin_json_serialization_seconds", "summary",
+			"Time spent serializing JSON responses.");
+		summary(out, "thin_json_serialization_seconds", "", JSON_SERIALIZATION);
+
+		ThreadPool pool = threadPool;
+		if (pool != null) {
+			gauge(out, "thin_jetty_threads", "Threads in the Jetty thread pool.",
+				pool.getThreads());
+			gauge(out, "thin_jetty_threads_idle", "Idle Jetty threads.",
+				pool.getIdleThreads());
+		}
+		if (pool instanceof QueuedThreadPool) {
+			QueuedThreadPool queued = (QueuedThreadPool) pool;
+			gauge(out, "thin_jetty_threads_busy", "Busy Jetty threads.",
+				queued.getBusyThreads());
+			gauge(out, "thin_jetty_threads_max",
+				"Maximum size of the Jetty thread pool.", queued.getMaxThreads());
+			gauge(out, "thin_jetty_queue_size",
+				"Jobs waiting for a Jetty thread.", queued.getQueueSize());
+		}
+
+		PoolMetrics database = PoolMetrics.current();
+		if (database != null) {
+			gauge(out, "thin_database_connections_active",
+				"Connections checked out of the pool.", database.active());
+			gauge(out, "thin_database_connections_idle",
+				"Idle connections in the pool.", database.idle());
+			gauge(out, "thin_database_connections_waiting",
+				"Threads waiting to check out a connection.", database.waiting());
+			header(out, "thin_database_checkout_timeouts_total", "counter",
+				"Connection checkouts that timed out.");
+			sample(out, "thin_database_checkout_timeouts_total", "",
+				database.checkoutTimeouts());
+		}
+
+		if (!LIMITS.isEmpty()) {
+			String[] names = {"class"};
+			header(out, "thin_admission_limit", "gauge",
+				"Current concurrency limit by class of requests.");
+			for (ConcurrencyLimit limit : LIMITS) {
+				sample(out, "thin_admission_limit",
+					labels(names, Arrays.asList(limit.name())), limit.limit());
+			}
+			header(out, "thin_admission_in_flight", "gauge",
+				"Admitted requests in progress by class.");
+			for (ConcurrencyLimit limit : LIMITS) {
+				sample(out, "thin_admission_in_flight",
+					labels(names, Arrays.asList(limit.name())), limit.inFlight());
+			}
+			header(out, "thin_admission_rejected_total", "counter",
+				"Requests rejected with 503 by class.");
+			for (ConcurrencyLimit limit : LIMITS) {
+				sample(out, "thin_admission_rejected_total",
+					labels(names, Arrays.asList(limit.name())), limit.rejected());
+			}
+		}
+
+		QueryLog queryLog = QueryLog.current();
+		if (queryLog != null) {
+			header(out, "thin_query_log_dropped_total", "counter",
+				"Query log entries dropped because the log fell behind.");
+			sample(out, "thin_query_log_dropped_total", "", queryLog.dropped());
+		}
+	}
+}
@@ -8,45 +8,184 @@ import org.sql2o.Query;
 import org.sql2o.Sql2o;
 import org.sql2o.Sql2oException;
 
-import java.util.HashMap;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
 public abstract class AbstractModel implements ApiRepresentable {
+	/*
+	The outcome of a write:
+
+		SAVED      The record was written.
+		CONFLICT   The record conflicts with an existing row on a unique key.
+		NOT_FOUND  No row matched the record's keys.
+		INVALID    The record is not valid, so it was not written.
+		FAILED     The statement failed for another reason.
+	 */
+	public enum Outcome {
+		SAVED, CONFLICT, NOT_FOUND, INVALID, FAILED
+	}
+
+	private static final QueryLog QUERY_LOG = Config.newQueryLog();
 	private static final Sql2o SQL2O = Config.newSql2o();
-	// Maps the name of a column to its value.
-	private final Map<String, Object> values;
+	// Coalesces the inserts of concurrent create() calls, or is null if group
+	// commit is disabled (see insertGroup()).
+	private static final GroupCommitter<AbstractModel, Outcome> INSERTS =
+		Config.newGroupCommitter("group-commit", AbstractModel::insertGroup);
+	private static final String UNIQUE_VIOLATION = "23505";
+
+	// The value of each column, indexed by ordinal (see TableMetadata). Use
+	// values() rather than the field (see below).
+	private Object[] values;
+	// The mask of the columns that have been set since the record was last read
+	// or saved (see TableMetadata)
+	private long dirty;
 
 	public static Sql2o sql2o() {
 		return SQL2O;
 	}
 
+	// connection() and transaction() record the time of the checkout in the
+	// query log.
 	public static Connection connection() {
-		return sql2o().open();
+		long start = System.nanoTime();
+		try {
+			return sql2o().open();
+		}
+		finally {
+			QUERY_LOG.checkout(System.nanoTime() - start);
+		}
 	}
 
 	public static Connection transaction() {
-		return sql2o().beginTransaction();
+		long start = System.nanoTime();
+		try {
+			return sql2o().beginTransaction();
+		}
+		finally {
+			QUERY_LOG.checkout(System.nanoTime() - start);
+		}
+	}
+
+	/*
+	readTransaction() returns a connection in a read-only transaction. Outside
+	autocommit mode, the PostgreSQL driver reads the results of a query through a
+	server-side cursor, fetching DATABASE_FETCH_SIZE rows at a time (see Config),
+	rather than reading the entire result set into memory. Use readTransaction()
+	for queries whose results are streamed, for example, Submission.forFormId().
+	Closing the connection rolls back the transaction.
+	 */
+	public static Connection readTransaction() {
+		Connection connection = transaction();
+		try {
+			connection.getJdbcConnection().setReadOnly(true);
+		}
+		catch (SQLException e) {
+			connection.close();
+			throw new Sql2oException("Could not start a read-only transaction", e);
+		}
+		return connection;
+	}
+
+	// snapshotTransaction() returns a connection in a read-only transaction whose
+	// statements all see the same snapshot of the database, so that, for
+	// example, a count and the rows that it counts agree.
+	public static Connection snapshotTransaction() {
+		Connection connection = readTransaction();
+		try {
+			connection.getJdbcConnection().setTransactionIsolation(
+				java.sql.Connection.TRANSACTION_REPEATABLE_READ);
+		}
+		catch (SQLException e) {
+			connection.close();
+			throw new Sql2oException("Could not start a snapshot transaction", e);
+		}
+		return connection;
+	}
+
+	/*
+	exportSnapshot() returns the ID of the snapshot of a snapshot transaction
+	(see pg_export_snapshot()). While that transaction stays open,
+	snapshotTransaction(snapshotId) starts other snapshot transactions that see
+	the same snapshot, so that work split across several connections reads the
+	database as of a single moment.
+	 */
+	public static String exportSnapshot(Connection connection) {
+		Query query = connection.createQuery("SELECT pg_export_snapshot()");
+		return execute(query, q -> q.executeScalar(String.class),
+			Collections.emptyMap());
+	}
+
+	public static Connection snapshotTransaction(String snapshotId) {
+		// A snapshot ID cannot be a parameter, so it is checked instead.
+		if (!snapshotId.matches("[0-9A-Fa-f-]+"))
+			throw new IllegalArgumentException("invalid snapshot ID");
+		Connection connection = snapshotTransaction();
+		boolean succeeded = false;
+		try {
+			// SET TRANSACTION SNAPSHOT must be the first statement of the
+			// transaction.
+			Query query = connection.createQuery(
+				"SET TRANSACTION SNAPSHOT '" + snapshotId + "'");
+			execute(query, Query::executeUpdate, Collections.emptyMap());
+			succeeded = true;
+		}
+		finally {
+			if (!succeeded)
+				connection.close();
+		}
+		return connection;
 	}
 
-	// TODO: Do Spark or Sql2o provide built-in support for logging?
-	protected static void log(Query query, Map<String, Object> parameters) {
-		Application.logger().info("{}  {}", query, parameters);
+	// Executes a query by calling execute, then records it in the query log along
+	// with the values of its parameters.
+	protected static <T> T execute(Query query, Function<Query, T> execute,
+		Map<String, ?> parameters) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			T result = execute.apply(query);
+			failed = false;
+			return result;
+		}
+		finally {
+			QUERY_LOG.statement(query.toString(), parameters,
+				System.nanoTime() - start, failed);
+		}
 	}
 
-	protected static void log(Query query, String... parameters) {
+	// parameters alternates between the name and the value of each parameter.
+	protected static <T> T execute(Query query, Function<Query, T> execute,
+		Object... parameters) {
 		if (parameters.length % 2 != 0)
 			throw new IllegalArgumentException("invalid parameters");
-		Map map = new LinkedHashMap();
+		Map<String, Object> map = new LinkedHashMap<>();
 		for (int i = 0; i < parameters.length; i += 2)
-			map.put(parameters[i], parameters[i + 1]);
-		log(query, map);
+			map.put((String) parameters[i], parameters[i + 1]);
+		return execute(query, execute, map);
 	}
 
+	// table() is called by the constructor, so it must not depend on the state
+	// of the subclass instance.
 	public AbstractModel() {
-		values = new HashMap<>();
+		values = new Object[table().columnCount()];
+	}
+
+	// On Java 9 and later, Sql2o creates the records that it reads without
+	// calling a constructor (through Unsafe.allocateInstance()), so values may
+	// still be null when a setter is first called.
+	private Object[] values() {
+		Object[] values = this.values;
+		if (values == null)
+			values = this.values = new Object[table().columnCount()];
+		return values;
 	}
 
 	// Returns the metadata of the underlying table.
@@ -58,150 +197,406 @@ public abstract class AbstractModel implements ApiRepresentable {
 	// Gets a column value by column name, throwing an exception if no such column
 	// exists.
 	public Object value(String columnName) {
-		if (!table().columnNames().contains(columnName))
-			throw new IllegalArgumentException();
-		return values.get(columnName);
+		return values()[table().ordinal(columnName)];
 	}
 
 	// Sets a column value by column name, throwing an exception if no such column
 	// exists.
-	// TODO: Is there a way to make this more type-safe?
 	protected void value(String columnName, Object value) {
-		if (!table().columnNames().contains(columnName))
-			throw new IllegalArgumentException();
-		values.put(columnName, value);
+		value(table().ordinal(columnName), value);
+	}
+
+	/*
+	The following methods get and set column values by ordinal. They skip the
+	lookup of the column name, so subclasses should use them in accessors that
+	are called in loops, resolving each ordinal once through
+	TableMetadata.ordinal(). They throw an ArrayIndexOutOfBoundsException if
+	there is no column with the ordinal, and the typed getters throw a
+	ClassCastException if the value has a different type.
+	 */
+
+	protected Object value(int ordinal) {
+		return values()[ordinal];
+	}
+
+	protected void value(int ordinal, Object value) {
+		values()[ordinal] = value;
+		dirty |= 1L << ordinal;
+	}
+
+	protected String stringValue(int ordinal) {
+		return (String) values()[ordinal];
+	}
+
+	protected Long longValue(int ordinal) {
+		return (Long) values()[ordinal];
 	}
 
 	public Long getId() {
-		return (Long) value("id");
+		return longValue(table().idOrdinal());
 	}
 
 	public void setId(Long id) {
-		value("id", id);
+		value(table().idOrdinal(), id);
 	}
 
 	public boolean isPersisted() {
 		return getId() != null;
 	}
 
-	// executeUpdate() calls the executeUpdate() method of a Query object,
-	// providing logging and committing the Query's transaction. If the Query is
-	// an INSERT statement and returnGeneratedKey is true, executeUpdate() returns
-	// the new row's ID; otherwise it returns null.
-	private Long executeUpdate(Query query, boolean returnGeneratedKey) {
-		Long id = null;
-		log(query, values);
-		try {
-			Connection connection = query.executeUpdate();
-			if (returnGeneratedKey)
-				id = connection.getKey(Long.class);
-			query.getConnection().commit();
-		}
-		catch (Sql2oException e) {
-			Application.logger().info("Query threw an exception:\n{}",
-				e.getMessage());
-			throw e;
-		}
-		return id;
-	}
-
-	// Returns a SQL INSERT statement as String.
-	private String insertSql() {
-		StringBuilder sql = new StringBuilder("INSERT INTO ")
-			.append(table().name())
-			.append(" (");
-		List<String> notId = table()
-			.columnNames()
-			.stream()
-			.filter(name -> !name.equals("id"))
-			.collect(Collectors.toList());
-		sql
-			.append(String.join(", ", notId))
-			.append(") VALUES (:")
-			.append(String.join(", :", notId))
-			.append(')');
-		return sql.toString();
-	}
-
-	// Returns a Query object for an INSERT statement.
-	private Query insertQuery(Connection connection) {
-		Query query = connection.createQuery(insertSql(), true);
-		for (String name : table().columnNames()) {
-			if (name.equals("id"))
-				continue;
-			query.addParameter(name, value(name));
-		}
-		return query;
-	}
-
-	// Executes a SQL INSERT statement, returning true if the statement is
-	// successful and false if not.
-	private boolean insert() {
-		try (Connection connection = transaction()) {
-			boolean success = true;
-			Long id = null;
+	// getVersion() and setVersion() may only be used with a versioned table (see
+	// TableMetadata).
+	public Long getVersion() {
+		return longValue(versionOrdinal());
+	}
+
+	public void setVersion(Long version) {
+		value(versionOrdinal(), version);
+	}
+
+	private int versionOrdinal() {
+		int ordinal = table().versionOrdinal();
+		if (ordinal < 0)
+			throw new IllegalArgumentException("table is not versioned");
+		return ordinal;
+	}
+
+	// Returns true if the column has been set since the record was last read or
+	// saved.
+	public boolean isDirty(String columnName) {
+		return (dirty & (1L << table().ordinal(columnName))) != 0;
+	}
+
+	// Marks every column as clean. Call markClean() on a record whose values
+	// match its row, for example, after reading it from the database.
+	protected void markClean() {
+		dirty = 0;
+	}
+
+	// Returns true if the exception was caused by a unique violation.
+	private static boolean isUniqueViolation(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException &&
+				UNIQUE_VIOLATION.equals(((SQLException) cause).getSQLState()))
+				return true;
+		}
+		return false;
+	}
+
+	private static void logException(Exception e) {
+		Application.logger().info("Query threw an exception:\n{}", e.getMessage());
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* statements */
+
+	/*
+	Records are written through SqlTemplate objects rather than Sql2o queries.
+	TableMetadata builds each template once, so a write does not build or parse
+	any SQL: it looks up the template for its dirty columns, then binds the
+	values by parameter index to a JDBC PreparedStatement. Because the SQL of a
+	template never changes, the driver reuses a server-side prepared statement
+	for it on each pooled connection (see SqlTemplate).
+	 */
+
+	// Records a statement in the query log along with the values of its
+	// parameters.
+	private void log(SqlTemplate template, Map<String, Object> keys, long nanos,
+		boolean failed) {
+		if (!QUERY_LOG.isLogged(nanos)) {
+			QUERY_LOG.statement(template.sql(), null, nanos, failed);
+			return;
+		}
+		Map<String, Object> parameters = new LinkedHashMap<>();
+		for (int i = 0; i < template.parameterCount(); i++) {
+			String column = template.parameter(i);
+			parameters.put(column, i < template.valueCount() ?
+				values()[template.ordinal(i)] : keys.get(column));
+		}
+		QUERY_LOG.statement(template.sql(), parameters, nanos, failed);
+	}
+
+	// Binds the parameters of a template to a statement: first the values of the
+	// record's columns, then the values of the key columns.
+	private void bind(PreparedStatement statement, SqlTemplate template,
+		Map<String, Object> keys) throws SQLException {
+		int valueCount = template.valueCount();
+		for (int i = 0; i < valueCount; i++)
+			statement.setObject(i + 1, values()[template.ordinal(i)]);
+		for (int i = valueCount; i < template.parameterCount(); i++)
+			statement.setObject(i + 1, keys.get(template.parameter(i)));
+	}
+
+	/*
+	executeReturning() executes a template whose statement has a RETURNING
+	clause, returning the id and version of the row that the statement returned,
+	or null if it did not return a row. For a table that is not versioned, the
+	version is 0.
+	 */
+	private long[] executeReturning(java.sql.Connection connection,
+		SqlTemplate template, Map<String, Object> keys) throws SQLException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try (PreparedStatement statement =
+			connection.prepareStatement(template.sql())) {
+			bind(statement, template, keys);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				failed = false;
+				if (!resultSet.next())
+					return null;
+				long id = resultSet.getLong(1);
+				long version = table().versioned() ? resultSet.getLong(2) : 0;
+				return new long[] {id, version};
+			}
+		}
+		finally {
+			log(template, keys, System.nanoTime() - start, failed);
+		}
+	}
+
+	// Updates the record from the id and version of its row after a successful
+	// write, then calls afterSave().
+	private void saved(long[] row) {
+		setId(row[0]);
+		if (table().versioned())
+			setVersion(row[1]);
+		markClean();
+		afterSave();
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* inserts */
+
+	/*
+	create() inserts the record if it is valid, writing only the dirty columns.
+	It returns SAVED if the record was inserted, CONFLICT if it conflicts with an
+	existing row, INVALID if it is not valid, and FAILED if the statement failed
+	for any other reason. If group commit is enabled, the statement is committed
+	together with those of concurrent inserts (see insertGroup()).
+	 */
+	public Outcome create() {
+		if (!isValid())
+			return Outcome.INVALID;
+		if (INSERTS != null) {
+			long start = System.nanoTime();
 			try {
-				id = executeUpdate(insertQuery(connection), true);
+				return INSERTS.submit(this);
 			}
 			catch (Sql2oException e) {
-				// TODO: Confirm that a failed statement always throws a Sql2oException.
-				success = false;
+				Application.logger().info("Group commit threw an exception:\n{}",
+					e.getMessage());
+				return Outcome.FAILED;
+			}
+			finally {
+				QueryLog.addThreadNanos(System.nanoTime() - start);
+			}
+		}
+		long[] row;
+		try (Connection connection = transaction()) {
+			try {
+				row = executeReturning(connection.getJdbcConnection(),
+					table().insert(dirty), null);
+				connection.commit();
+			}
+			catch (SQLException e) {
+				logException(e);
+				return Outcome.FAILED;
 			}
-			if (success)
-				setId(id);
-			return success;
 		}
+		if (row == null)
+			return Outcome.CONFLICT;
+		saved(row);
+		return Outcome.SAVED;
 	}
 
-	// Returns a SQL UPDATE statement as String.
-	private String updateSql() {
-		StringBuilder sql = new StringBuilder("UPDATE ")
-			.append(table().name())
-			.append(" SET ");
-		boolean first = true;
-		for (String name : table().columnNames()) {
-			if (!first)
-				sql.append(", ");
-			sql.append(name).append(" = :").append(name);
-			first = false;
+	/*
+	insertGroup() inserts records in a single transaction with a single commit,
+	returning the outcome of each record. Each record is inserted by its own
+	statement, and a record that conflicts with an existing row is skipped. The
+	statements are first run without savepoints. If any of them fails, the
+	transaction is rolled back and the records are inserted again, each within a
+	savepoint, so that a record that fails does not prevent the others from
+	being inserted.
+	 */
+	static List<Outcome> insertGroup(List<AbstractModel> records) {
+		long[][] rows = new long[records.size()][];
+		Outcome[] outcomes = new Outcome[records.size()];
+		try (Connection connection = transaction()) {
+			java.sql.Connection jdbcConnection = connection.getJdbcConnection();
+			try {
+				try {
+					insertEach(jdbcConnection, records, false, rows, outcomes);
+				}
+				catch (SQLException e) {
+					jdbcConnection.rollback();
+					insertEach(jdbcConnection, records, true, rows, outcomes);
+				}
+			}
+			catch (SQLException e) {
+				throw new Sql2oException("Could not insert records", e);
+			}
+			connection.commit();
+		}
+		for (int i = 0; i < rows.length; i++) {
+			if (outcomes[i] == Outcome.SAVED)
+				records.get(i).saved(rows[i]);
+		}
+		return Arrays.asList(outcomes);
+	}
+
+	// Inserts each record, setting its element of rows to the id and version of
+	// its row and its element of outcomes to its outcome. Unless savepoints is
+	// true, a statement that fails throws an exception.
+	private static void insertEach(java.sql.Connection connection,
+		List<AbstractModel> records, boolean savepoints, long[][] rows,
+		Outcome[] outcomes) throws SQLException {
+		for (int i = 0; i < rows.length; i++) {
+			AbstractModel record = records.get(i);
+			SqlTemplate template = record.table().insert(record.dirty);
+			Savepoint savepoint = savepoints ? connection.setSavepoint() : null;
+			try {
+				rows[i] = record.executeReturning(connection, template, null);
+				outcomes[i] = rows[i] != null ? Outcome.SAVED : Outcome.CONFLICT;
+				if (savepoint != null)
+					connection.releaseSavepoint(savepoint);
+			}
+			catch (SQLException e) {
+				if (savepoint == null)
+					throw e;
+				logException(e);
+				connection.rollback(savepoint);
+				rows[i] = null;
+				outcomes[i] = Outcome.FAILED;
+			}
+		}
+	}
+
+	/*
+	insertAll() inserts records in a single transaction, using one batched
+	prepared statement. A record that conflicts with an existing row, or with an
+	earlier record in the batch, is skipped instead of failing the batch. It
+	returns an array with an element for each record, which is true if the record
+	was inserted and false if it was skipped. The records must belong to the same
+	table. Every writable column is written, dirty or not. insertAll() does not
+	validate the records or set their IDs, and it throws a Sql2oException if the
+	batch fails for any other reason.
+	 */
+	public static boolean[] insertAll(List<? extends AbstractModel> records) {
+		boolean[] inserted = new boolean[records.size()];
+		if (records.isEmpty())
+			return inserted;
+		TableMetadata table = records.get(0).table();
+		SqlTemplate template = table.insertAll();
+		try (Connection connection = transaction()) {
+			// The checkout is timed by transaction(), so the batch is timed from
+			// here.
+			long start = System.nanoTime();
+			boolean failed = true;
+			try (PreparedStatement statement =
+				connection.getJdbcConnection().prepareStatement(template.sql())) {
+				for (AbstractModel record : records) {
+					if (record.table() != table)
+						throw new IllegalArgumentException("records of different tables");
+					record.bind(statement, template, null);
+					statement.addBatch();
+				}
+				int[] counts = statement.executeBatch();
+				connection.commit();
+				failed = false;
+				for (int i = 0; i < inserted.length; i++)
+					inserted[i] = counts[i] > 0;
+			}
+			catch (SQLException e) {
+				Application.logger().info("Batch threw an exception:\n{}",
+					e.getMessage());
+				throw new Sql2oException("Could not insert records", e);
+			}
+			finally {
+				QUERY_LOG.statement(template.sql(),
+					Collections.singletonMap("records", records.size()),
+					System.nanoTime() - start, failed);
+			}
 		}
-		sql.append(" WHERE id = :id");
-		return sql.toString();
+		return inserted;
 	}
 
-	// Returns a Query object for an UPDATE statement.
-	private Query updateQuery(Connection connection) {
-		Query query = connection.createQuery(updateSql());
-		for (String name : table().columnNames())
-			query.addParameter(name, value(name));
-		return query;
+	/* ------------------------------------------------------------------------ */
+				/* updates and upserts */
+
+	/*
+	updateWhere() updates the row whose columns have the specified values,
+	writing only the dirty columns of the record, in a single statement. If the
+	table is versioned, the statement increments the version. The record does not
+	need to have been read first: its id and version are set from the updated
+	row. updateWhere() returns SAVED if a row was updated, NOT_FOUND if no row
+	matched, CONFLICT if the update would violate a unique constraint, INVALID if
+	the record is not valid, and FAILED if the statement failed for any other
+	reason. The keys should identify at most one row.
+	 */
+	public Outcome updateWhere(Map<String, Object> keys) {
+		SqlTemplate template = table().update(dirty, table().mask(keys.keySet()));
+		if (!isValid())
+			return Outcome.INVALID;
+		return write(template, keys, Outcome.NOT_FOUND);
 	}
 
-	// Executes a SQL UPDATE statement, returning true if the statement is
-	// successful and false if not.
-	private boolean update() {
+	/*
+	upsert() inserts the record, or if it conflicts with an existing row on the
+	specified columns, which must have a unique index, updates that row instead.
+	Either way, it writes only the dirty columns, in a single statement, and sets
+	the record's id and version from the row. An update increments the version of
+	a versioned table. upsert() returns SAVED, INVALID if the record is not
+	valid, CONFLICT if the record violates a unique constraint on other columns,
+	and FAILED if the statement failed for any other reason.
+	 */
+	public Outcome upsert(String... conflictColumns) {
+		SqlTemplate template =
+			table().upsert(dirty, table().mask(Arrays.asList(conflictColumns)));
+		if (!isValid())
+			return Outcome.INVALID;
+		return write(template, null, Outcome.FAILED);
+	}
+
+	// Executes an UPDATE or upsert template in its own transaction, returning
+	// noRow if the statement did not return a row.
+	private Outcome write(SqlTemplate template, Map<String, Object> keys,
+		Outcome noRow) {
+		long[] row;
 		try (Connection connection = transaction()) {
-			boolean success = true;
 			try {
-				executeUpdate(updateQuery(connection), false);
+				row = executeReturning(connection.getJdbcConnection(), template, keys);
+				connection.commit();
 			}
-			catch (Sql2oException e) {
-				success = false;
+			catch (SQLException e) {
+				logException(e);
+				return isUniqueViolation(e) ? Outcome.CONFLICT : Outcome.FAILED;
 			}
-			return success;
 		}
+		if (row == null)
+			return noRow;
+		saved(row);
+		return Outcome.SAVED;
 	}
 
-	// save() saves the record, executing either an INSERT or UPDATE statement
-	// after checking that the record is valid. It returns true if the record was
-	// saved successfully and false if not.
+	// save() saves the record, creating it if it has not been persisted and
+	// otherwise updating it by ID. It returns true if the record was saved
+	// successfully and false if not.
 	public boolean save() {
-		if (!isValid())
-			return false;
-		return isPersisted() ? update() : insert();
+		Outcome outcome = isPersisted() ?
+			updateWhere(Collections.singletonMap("id", getId())) :
+			create();
+		return outcome == Outcome.SAVED;
 	}
 
+	// afterSave() is called after the record is saved successfully. Subclasses
+	// may override it, for example, to invalidate cached copies of the record.
+	protected void afterSave() { }
+
 	public String toString() {
-		return values.toString();
+		Map<String, Object> map = new LinkedHashMap<>();
+		Object[] values = values();
+		for (int i = 0; i < values.length; i++)
+			map.put(table().columnName(i), values[i]);
+		return map.toString();
 	}
 }
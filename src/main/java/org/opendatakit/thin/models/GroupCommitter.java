@@ -0,0 +1,163 @@
+package org.opendatakit.thin.models;
+
+import org.opendatakit.thin.Application;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+GroupCommitter coalesces work that callers on different threads submit
+concurrently, so that it can be committed together. submit() queues an item and
+blocks until the batch that contains it has been committed, then returns the
+item's result. Committer threads take batches from the queue and pass each
+batch to the commit function, which returns a result for each item, in order.
+
+A committer takes every item that is already queued, up to maxBatchSize. If the
+window is positive, it then waits up to the window for more items to arrive.
+With a window of zero, batches still form under load: items that arrive while
+every committer is busy are committed together in the next batch.
+
+If the commit function throws, every item in the batch fails with the same
+exception. The commit function should handle failures of individual items
+itself (see AbstractModel.insertGroup()).
+ */
+public class GroupCommitter<T, R> implements AutoCloseable {
+	private static class Pending<T, R> {
+		final T item;
+		final CompletableFuture<R> result = new CompletableFuture<>();
+
+		Pending(T item) {
+			this.item = item;
+		}
+	}
+
+	private final Function<List<T>, List<R>> commit;
+	private final int maxBatchSize;
+	private final long windowNanos;
+	private final BlockingQueue<Pending<T, R>> queue =
+		new LinkedBlockingQueue<>();
+	private final List<Thread> committers = new ArrayList<>();
+	private volatile boolean closed;
+
+	public GroupCommitter(String name, Function<List<T>, List<R>> commit,
+		int committerCount, int maxBatchSize, long window, TimeUnit unit) {
+		if (committerCount < 1 || maxBatchSize < 1 || window < 0)
+			throw new IllegalArgumentException();
+		this.commit = commit;
+		this.maxBatchSize = maxBatchSize;
+		this.windowNanos = unit.toNanos(window);
+		for (int i = 0; i < committerCount; i++) {
+			Thread thread = new Thread(this::run, name + "-" + i);
+			thread.setDaemon(true);
+			committers.add(thread);
+			thread.start();
+		}
+	}
+
+	// Submits an item and waits for its result. Exceptions thrown by the commit
+	// function are rethrown.
+	public R submit(T item) {
+		if (closed)
+			throw new IllegalStateException("GroupCommitter is closed");
+		Pending<T, R> pending = new Pending<>(item);
+		queue.add(pending);
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return pending.result.get();
+				}
+				catch (InterruptedException e) {
+					// The item may already be committed, so keep waiting.
+					interrupted = true;
+				}
+				catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+			}
+		}
+		finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	// Adds queued items to the batch until it is full or the window has passed.
+	private void fill(List<Pending<T, R>> batch) throws InterruptedException {
+		queue.drainTo(batch, maxBatchSize - batch.size());
+		long deadline = System.nanoTime() + windowNanos;
+		while (batch.size() < maxBatchSize) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				break;
+			Pending<T, R> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null)
+				break;
+			batch.add(next);
+			queue.drainTo(batch, maxBatchSize - batch.size());
+		}
+	}
+
+	private void commit(List<Pending<T, R>> batch) {
+		List<T> items = new ArrayList<>(batch.size());
+		for (Pending<T, R> pending : batch)
+			items.add(pending.item);
+		try {
+			List<R> results = commit.apply(items);
+			if (results.size() != batch.size())
+				throw new IllegalStateException("wrong number of results");
+			for (int i = 0; i < batch.size(); i++)
+				batch.get(i).result.complete(results.get(i));
+		}
+		catch (RuntimeException | Error e) {
+			for (Pending<T, R> pending : batch)
+				pending.result.completeExceptionally(e);
+		}
+	}
+
+	private void run() {
+		List<Pending<T, R>> batch = new ArrayList<>(maxBatchSize);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Pending<T, R> first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				fill(batch);
+				commit(batch);
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			Application.logger().warn("Group committer interrupted");
+			for (Pending<T, R> pending : batch)
+				pending.result.completeExceptionally(e);
+		}
+	}
+
+	// Stops accepting items, then waits for the items that are already queued to
+	// be committed.
+	@Override
+	public void close() throws InterruptedException {
+		closed = true;
+		for (Thread committer : committers)
+			committer.join();
+		// Fail any item that was queued as the committers stopped.
+		Pending<T, R> pending;
+		while ((pending = queue.poll()) != null) {
+			pending.result.completeExceptionally(
+				new IllegalStateException("GroupCommitter is closed"));
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package org.opendatakit.thin.models;
+
+import org.opendatakit.thin.Application;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+QueryLog times the statements that AbstractModel and its subclasses execute,
+along with connection checkouts, and logs them without blocking the threads
+that execute them.
+
+Statements are logged at INFO. At INFO, the value of each parameter is
+truncated to maxParameterLength characters, so that, for example, the XML of a
+submission is not logged in full. At DEBUG, the values are logged in full. A
+statement or checkout that takes at least slowNanos is also written to the
+slow-query log: either the file at slowLogPath, or if slowLogPath is null, the
+logger SLOW_LOGGER at WARN.
+
+Request threads only add entries to a bounded queue, and a single background
+thread formats and writes them. If the queue is full, the entry is dropped and
+counted, and the writer reports the number of dropped entries once it catches
+up.
+
+QueryLog also accumulates the time that each thread spends executing
+statements, fetching the rows of lazy queries (see timed()), and checking out
+connections (see threadNanos()), and it keeps the longest of those operations
+(see threadMaxNanos()). Inserts committed by a GroupCommitter are logged and
+timed on the committer threads, but the time that the submitting thread waits
+for the commit is added to its own total (see addThreadNanos()).
+ */
+public class QueryLog {
+	public static final String SLOW_LOGGER =
+		Application.class.getPackage().getName() + ".slowqueries";
+
+	private static final Logger LOGGER = Application.logger();
+	// The total time of the thread's operations, and the time of the longest
+	private static final ThreadLocal<long[]> THREAD_NANOS =
+		ThreadLocal.withInitial(() -> new long[2]);
+
+	private static volatile QueryLog current;
+
+	private static class Entry {
+		// The SQL of the statement, or null for a connection checkout
+		final String sql;
+		final Map<String, ?> parameters;
+		final long nanos;
+		final long time = System.currentTimeMillis();
+		final boolean failed;
+
+		Entry(String sql, Map<String, ?> parameters, long nanos, boolean failed) {
+			this.sql = sql;
+			this.parameters = parameters;
+			this.nanos = nanos;
+			this.failed = failed;
+		}
+	}
+
+	private final long slowNanos;
+	private final int maxParameterLength;
+	private final Path slowLogPath;
+	private final Logger slowLogger = LoggerFactory.getLogger(SLOW_LOGGER);
+	private final BlockingQueue<Entry> queue;
+	private final LongAdder dropped = new LongAdder();
+	private BufferedWriter slowLog;
+
+	public QueryLog(long slowMillis, int maxParameterLength, Path slowLogPath,
+		int queueSize) {
+		if (slowMillis < 0 || maxParameterLength < 0 || queueSize < 1)
+			throw new IllegalArgumentException();
+		slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+		this.maxParameterLength = maxParameterLength;
+		this.slowLogPath = slowLogPath;
+		queue = new LinkedBlockingQueue<>(queueSize);
+		Thread writer = new Thread(this::write, "query-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// Returns the most recently configured QueryLog, or null if none has been
+	// configured.
+	public static QueryLog current() {
+		return current;
+	}
+
+	public static void setCurrent(QueryLog log) {
+		current = log;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* recording */
+
+	private static void add(long[] threadNanos, long nanos) {
+		threadNanos[0] += nanos;
+		if (nanos > threadNanos[1])
+			threadNanos[1] = nanos;
+	}
+
+	// Returns the total time in nanoseconds that the current thread has spent
+	// executing statements and checking out connections.
+	public static long threadNanos() {
+		return THREAD_NANOS.get()[0];
+	}
+
+	/*
+	threadMaxNanos() returns the time in nanoseconds of the longest statement,
+	fetch, or checkout of the current thread since resetThreadMaxNanos() was last
+	called. Unlike threadNanos(), it does not grow with the number of rows that a
+	thread reads, so it measures how fast the database is responding rather than
+	how much work was asked of it.
+	 */
+	public static long threadMaxNanos() {
+		return THREAD_NANOS.get()[1];
+	}
+
+	public static void resetThreadMaxNanos() {
+		THREAD_NANOS.get()[1] = 0;
+	}
+
+	// Adds time that the current thread spent waiting for the database on another
+	// thread, for example, for a group commit. The wait counts as one operation.
+	public static void addThreadNanos(long nanos) {
+		add(THREAD_NANOS.get(), nanos);
+	}
+
+	// Adds the time that another thread spent in the database on behalf of the
+	// current thread, where maxNanos is the time of its longest operation.
+	public static void addThreadNanos(long nanos, long maxNanos) {
+		long[] threadNanos = THREAD_NANOS.get();
+		threadNanos[0] += nanos;
+		if (maxNanos > threadNanos[1])
+			threadNanos[1] = maxNanos;
+	}
+
+	/*
+	timed() wraps the rows of a lazy query, for example, one that reads through a
+	server-side cursor, so that the time spent in each call to hasNext() and
+	next() is added to the thread's total, each call as one operation. Those
+	calls fetch the rows after the first batch, which the time of the statement
+	itself does not cover. The rows must be iterated on the thread that will
+	report the time.
+	 */
+	public static <T> Iterable<T> timed(Iterable<T> rows) {
+		return () -> {
+			Iterator<T> iterator = rows.iterator();
+			long[] nanos = THREAD_NANOS.get();
+			return new Iterator<T>() {
+				@Override
+				public boolean hasNext() {
+					long start = System.nanoTime();
+					try {
+						return iterator.hasNext();
+					}
+					finally {
+						add(nanos, System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public T next() {
+					long start = System.nanoTime();
+					try {
+						return iterator.next();
+					}
+					finally {
+						add(nanos, System.nanoTime() - start);
+					}
+				}
+			};
+		};
+	}
+
+	// Returns true if a statement that took the specified time would be logged.
+	// Callers may check isLogged() before collecting the parameters of a
+	// statement.
+	public boolean isLogged(long nanos) {
+		return LOGGER.isInfoEnabled() || nanos >= slowNanos;
+	}
+
+	private void enqueue(Entry entry) {
+		if (!queue.offer(entry))
+			dropped.increment();
+	}
+
+	// Records a statement that took the specified time. parameters must not be
+	// modified afterwards.
+	public void statement(String sql, Map<String, ?> parameters, long nanos,
+		boolean failed) {
+		add(THREAD_NANOS.get(), nanos);
+		if (isLogged(nanos))
+			enqueue(new Entry(sql, parameters, nanos, failed));
+	}
+
+	// Records a connection checkout that took the specified time. Checkouts are
+	// logged only if they are slow.
+	public void checkout(long nanos) {
+		add(THREAD_NANOS.get(), nanos);
+		if (nanos >= slowNanos)
+			enqueue(new Entry(null, null, nanos, false));
+	}
+
+	// Returns the number of entries dropped because the queue was full.
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* writing */
+
+	private static String millis(long nanos) {
+		return String.format("%.3fms", nanos / 1e6);
+	}
+
+	private String parameters(Map<String, ?> parameters, boolean truncate) {
+		StringBuilder builder = new StringBuilder("{");
+		for (Map.Entry<String, ?> parameter : parameters.entrySet()) {
+			if (builder.length() > 1)
+				builder.append(", ");
+			String value = String.valueOf(parameter.getValue());
+			builder.append(parameter.getKey()).append('=');
+			if (truncate && value.length() > maxParameterLength) {
+				builder
+					.append(value, 0, maxParameterLength)
+					.append("...(")
+					.append(value.length())
+					.append(" chars)");
+			}
+			else {
+				builder.append(value);
+			}
+		}
+		return builder.append('}').toString();
+	}
+
+	private String format(Entry entry, boolean truncate) {
+		if (entry.sql == null)
+			return "Connection checkout  " + millis(entry.nanos);
+		StringBuilder builder = new StringBuilder(entry.sql)
+			.append("  ")
+			.append(parameters(entry.parameters, truncate))
+			.append("  ")
+			.append(millis(entry.nanos));
+		if (entry.failed)
+			builder.append("  failed");
+		return builder.toString();
+	}
+
+	private void writeSlow(Entry entry) {
+		String message = format(entry, true);
+		if (slowLogPath == null) {
+			slowLogger.warn("Slow query: {}", message);
+			return;
+		}
+		try {
+			if (slowLog == null) {
+				slowLog = Files.newBufferedWriter(slowLogPath, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+			slowLog
+				.append(Instant.ofEpochMilli(entry.time).toString())
+				.append("  ")
+				.append(message)
+				.append('\n');
+		}
+		catch (IOException e) {
+			LOGGER.error("Could not write to the slow-query log", e);
+		}
+	}
+
+	private void flushSlow() {
+		if (slowLog == null)
+			return;
+		try {
+			slowLog.flush();
+		}
+		catch (IOException e) {
+			LOGGER.error("Could not write to the slow-query log", e);
+		}
+	}
+
+	private void write() {
+		List<Entry> entries = new ArrayList<>();
+		long reported = 0;
+		while (true) {
+			try {
+				entries.add(queue.take());
+			}
+			catch (InterruptedException e) {
+				LOGGER.warn("Query log interrupted");
+				return;
+			}
+			queue.drainTo(entries);
+			for (Entry entry : entries) {
+				if (entry.sql != null) {
+					if (LOGGER.isDebugEnabled())
+						LOGGER.debug(format(entry, false));
+					else if (LOGGER.isInfoEnabled())
+						LOGGER.info(format(entry, true));
+				}
+				if (entry.nanos >= slowNanos)
+					writeSlow(entry);
+			}
+			flushSlow();
+			entries.clear();
+			long total = dropped.sum();
+			if (total > reported) {
+				LOGGER.warn("Dropped {} query log entries", total - reported);
+				reported = total;
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.opendatakit.thin.models;
+
+import java.util.Arrays;
+
+/*
+SqlTemplate is a SQL statement with JDBC-style ? placeholders, together with
+the column that supplies each placeholder's value. Templates are built once by
+TableMetadata and then shared, so that the SQL of a statement is the same
+string every time it is executed. The PostgreSQL driver caches prepared
+statements per connection by SQL, and after DATABASE_PREPARE_THRESHOLD
+executions of the same SQL on a connection, it reuses a server-side prepared
+statement (see Config.newDataSource()).
+
+The first valueCount() parameters take the values of a record's columns, which
+are identified by ordinal (see TableMetadata) so that they can be read without
+looking up the column names. The remaining parameters, if any, take the values
+of key columns, for example, in the WHERE clause of an UPDATE statement.
+
+SqlTemplate is immutable.
+ */
+public class SqlTemplate {
+	private final String sql;
+	// The column name of each parameter, in parameter order
+	private final String[] parameters;
+	// The column ordinal of each value parameter
+	private final int[] ordinals;
+	private final int valueCount;
+
+	SqlTemplate(String sql, String[] valueColumns, int[] valueOrdinals,
+		String[] keyColumns) {
+		this.sql = sql;
+		this.valueCount = valueColumns.length;
+		ordinals = valueOrdinals.clone();
+		parameters = Arrays.copyOf(valueColumns,
+			valueColumns.length + keyColumns.length);
+		System.arraycopy(keyColumns, 0, parameters, valueColumns.length,
+			keyColumns.length);
+	}
+
+	public String sql() {
+		return sql;
+	}
+
+	public int parameterCount() {
+		return parameters.length;
+	}
+
+	// Returns the number of parameters that take the values of a record's
+	// columns.
+	public int valueCount() {
+		return valueCount;
+	}
+
+	// Returns the column name of the parameter at the specified zero-based
+	// index. The JDBC index of the parameter is index + 1.
+	public String parameter(int index) {
+		return parameters[index];
+	}
+
+	// Returns the column ordinal of the value parameter at the specified
+	// zero-based index, which must be less than valueCount().
+	public int ordinal(int index) {
+		return ordinals[index];
+	}
+
+	public String toString() {
+		return sql;
+	}
+}
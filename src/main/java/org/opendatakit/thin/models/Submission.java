@@ -1,72 +1,138 @@
 package org.opendatakit.thin.models;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import org.opendatakit.thin.Config;
+import org.opendatakit.thin.metrics.Metrics;
+import org.opendatakit.thin.xml.XmlParser;
 import org.sql2o.Connection;
 import org.sql2o.Query;
 import org.sql2o.ResultSetIterable;
+import org.sql2o.data.Row;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class Submission extends AbstractModel {
 	private static final TableMetadata TABLE =
-		new TableMetadata("submissions", "formId", "instanceId", "xml");
+		new TableMetadata("submissions", "formId", "instanceId", "xml", "version");
+	private static final int FORM_ID = TABLE.ordinal("formId");
+	private static final int INSTANCE_ID = TABLE.ordinal("instanceId");
+	private static final int XML = TABLE.ordinal("xml");
 
-	private static final DocumentBuilder XML_PARSER;
-	static {
-		try {
-			XML_PARSER = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+	/*
+	CACHE caches the submissions returned by findByFormAndInstance(), or is null
+	if the cache is disabled (see Config.newSubmissionCache()). The cached
+	submissions are never returned directly: callers receive copies, which they
+	may modify. Saving a submission invalidates the entries for both its
+	previous and its current key.
+
+	A lookup that misses may read a row just before a save commits, then cache it
+	just after the save has invalidated the key. To prevent that, each save
+	increments the generation of its keys' stripe in GENERATIONS after it
+	commits and before it invalidates them. A lookup reads the generation before
+	it reads the row, and after caching the row, removes it again if the
+	generation has changed. Either the lookup sees the new generation, or the
+	save's invalidation comes after the row was cached, so a stale row is never
+	left in the cache. A save to another key in the same stripe only costs a
+	lookup its entry.
+	 */
+	private static final Cache<Key, Submission> CACHE =
+		Config.newSubmissionCache();
+	private static final int STRIPES = 1024;
+	private static final AtomicLongArray GENERATIONS =
+		new AtomicLongArray(STRIPES);
+
+	private static class Key {
+		private final String formId, instanceId;
+
+		public Key(String formId, String instanceId) {
+			this.formId = formId;
+			this.instanceId = instanceId;
 		}
-		catch (ParserConfigurationException e) {
-			throw new RuntimeException(e);
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key))
+				return false;
+			Key key = (Key) other;
+			return Objects.equals(formId, key.formId) &&
+				Objects.equals(instanceId, key.instanceId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(formId, instanceId);
+		}
+
+		// Returns the index of the key's stripe in GENERATIONS.
+		private int stripe() {
+			int hash = hashCode();
+			return (hash ^ (hash >>> 16)) & (STRIPES - 1);
 		}
 	}
 
+	// The key of the submission as it was last read or saved, or null if the
+	// submission has not been persisted.
+	private Key persistedKey;
+
+	/*
+	xmlRoot is the root element of the parsed xml column. Parsing is deferred
+	until the root element is actually needed: submissions read from the database
+	only store the raw XML (see setStoredXml()), so reads that just serve the XML
+	never build a DOM tree. xmlParsed is true once xmlRoot reflects the current
+	XML.
+	 */
 	private Element xmlRoot;
+	private boolean xmlParsed;
 
 	public TableMetadata table() {
 		return TABLE;
 	}
 
 	public String getFormId() {
-		return (String) value("formId");
+		return stringValue(FORM_ID);
 	}
 
 	public void setFormId(String formId) {
-		value("formId", formId);
+		value(FORM_ID, formId);
 	}
 
 	public String getInstanceId() {
-		return (String) value("instanceId");
+		return stringValue(INSTANCE_ID);
 	}
 
 	public void setInstanceId(String instanceId) {
-		value("instanceId", instanceId);
+		value(INSTANCE_ID, instanceId);
 	}
 
 	public Element getXmlRoot() {
+		if (!xmlParsed)
+			setXmlRoot(getXml());
 		return xmlRoot;
 	}
 
 	private void setXmlRoot(String xml) {
 		xmlRoot = null;
+		xmlParsed = true;
 		if (xml != null) {
 			Document document = null;
-			InputSource source = new InputSource(new StringReader(xml));
+			long start = System.nanoTime();
 			try {
-				document = XML_PARSER.parse(source);
+				document = XmlParser.parse(xml);
 			}
 			catch (IOException | SAXException e) {
 				// Do nothing: xmlRoot will be set to null.
 			}
+			Metrics.XML_PARSE.record(System.nanoTime() - start);
 			if (document != null && document.getChildNodes().getLength() == 1) {
 				Node rootNode = document.getChildNodes().item(0);
 				if (rootNode instanceof Element)
@@ -87,16 +153,90 @@ public class Submission extends AbstractModel {
 	}
 
 	public String getXml() {
-		return (String) value("xml");
+		return stringValue(XML);
 	}
 
+	// setXml() parses the XML immediately, setting formId and instanceId from the
+	// XML. Use it for XML that has not been validated.
 	public void setXml(String xml) {
 		setXmlRoot(xml);
-		value("xml", getXmlRoot() != null ? xml : null);
+		value(XML, getXmlRoot() != null ? xml : null);
 		setFormId(getXmlFormId());
 		setInstanceId(getXmlInstanceId());
 	}
 
+	// Sql2o calls setStoredXml() to set the xml column of a submission read from
+	// the database (see Queries.COLUMNS). The XML was validated before it was
+	// saved, and formId and instanceId are read from their own columns, so the
+	// XML is not parsed until getXmlRoot() is called.
+	private void setStoredXml(String xml) {
+		value(XML, xml);
+		xmlRoot = null;
+		xmlParsed = false;
+	}
+
+	private Key key() {
+		return new Key(getFormId(), getInstanceId());
+	}
+
+	// Returns a copy of the submission. The copy does not share any mutable state
+	// with the original.
+	private Submission copy() {
+		Submission copy = new Submission();
+		copy.setId(getId());
+		copy.setFormId(getFormId());
+		copy.setInstanceId(getInstanceId());
+		copy.setStoredXml(getXml());
+		copy.setVersion(getVersion());
+		copy.persistedKey = persistedKey;
+		copy.markClean();
+		return copy;
+	}
+
+	@Override
+	protected void afterSave() {
+		if (CACHE != null) {
+			if (persistedKey != null) {
+				GENERATIONS.incrementAndGet(persistedKey.stripe());
+				CACHE.invalidate(persistedKey);
+			}
+			GENERATIONS.incrementAndGet(key().stripe());
+			CACHE.invalidate(key());
+		}
+		persistedKey = key();
+	}
+
+	/*
+	update() updates the submission with the specified formId and instanceId in a
+	single statement, without reading it first (see AbstractModel.updateWhere()).
+	Only the columns that have been set are written: for example, setXml() sets
+	the xml, formId, and instanceId columns. If the XML's formId and instanceId
+	differ from the specified ones, they change, and the outcome is CONFLICT if
+	they belong to another submission.
+	 */
+	public Outcome update(String formId, String instanceId) {
+		Key previous = persistedKey;
+		persistedKey = new Key(formId, instanceId);
+		Map<String, Object> keys = new LinkedHashMap<>();
+		keys.put("formId", formId);
+		keys.put("instanceId", instanceId);
+		Outcome outcome = updateWhere(keys);
+		if (outcome != Outcome.SAVED)
+			persistedKey = previous;
+		return outcome;
+	}
+
+	// Returns true if findByFormAndInstance() reads through the cache.
+	public static boolean isCached() {
+		return CACHE != null;
+	}
+
+	// Returns the hit, miss, and eviction counts of the cache, or null if the
+	// cache is disabled.
+	public static CacheStats cacheStats() {
+		return CACHE != null ? CACHE.stats() : null;
+	}
+
 	public boolean isValid() {
 		boolean valid = true;
 		valid = valid && getFormId() != null && !getFormId().isEmpty();
@@ -125,44 +265,191 @@ public class Submission extends AbstractModel {
 	}
 
 	private interface Queries {
-		// Leaving a trailing space so that it's easy to append additional SQL.
-		String FOR_FORM_ID = "SELECT * FROM submissions WHERE formId = :formId ";
-		String SAMPLE_FOR_FORM_ID = FOR_FORM_ID + "LIMIT 1000 ";
+		// Selects the xml column as storedXml so that Sql2o sets it through
+		// setStoredXml() rather than setXml(). Leaving a trailing space so that
+		// it's easy to append additional SQL.
+		String COLUMNS = "id, formId, instanceId, xml AS storedXml, version ";
+		String FOR_FORM_ID =
+			"SELECT " + COLUMNS + "FROM submissions WHERE formId = :formId ";
+		String PAGE_FOR_FORM_ID =
+			FOR_FORM_ID + "AND id > :afterId ORDER BY id LIMIT :limit ";
+		String RANGE_FOR_FORM_ID =
+			FOR_FORM_ID + "AND id >= :fromId AND id < :toId ORDER BY id ";
+		// Reads only the (formId, id, version) index.
+		String ID_RANGE =
+			"SELECT min(id), max(id), count(*), coalesce(sum(version), 0) " +
+			"FROM submissions WHERE formId = :formId                      " ;
+		String ID_RANGE_BELOW =
+			ID_RANGE + "AND id < :toId ";
 		String FIND_BY_INSTANCE_ID =
-			"SELECT * FROM submissions    " +
+			"SELECT " + COLUMNS +
+			"FROM submissions             " +
+			"WHERE                        " +
+			"    formId = :formId AND     " +
+			"    instanceId = :instanceId " ;
+		String INSTANCE_VERSION =
+			"SELECT id || ':' || version  " +
+			"FROM submissions             " +
 			"WHERE                        " +
 			"    formId = :formId AND     " +
 			"    instanceId = :instanceId " ;
 	}
 
+	// Returns a string that changes whenever a submission of a form is inserted
+	// or updated, given the form's idRange(): the number, the maximum ID, and
+	// the sum of the versions of its submissions.
+	public static String formVersion(long[] range) {
+		if (range == null)
+			return "0:0:0";
+		return range[2] + ":" + range[1] + ":" + range[3];
+	}
+
+	// Returns the version of a form (see above). formVersion() does not read the
+	// submissions' XML. To describe the submissions that are read, connection
+	// should be a snapshot transaction (see AbstractModel.snapshotTransaction()).
+	public static String formVersion(Connection connection, String formId) {
+		return formVersion(idRange(connection, formId));
+	}
+
+	// Returns a string that changes whenever the submission is updated, or null
+	// if there is no such submission. instanceVersion() does not read the
+	// submission's XML.
+	public static String instanceVersion(String formId, String instanceId) {
+		try (Connection connection = connection()) {
+			Query query = connection
+				.createQuery(Queries.INSTANCE_VERSION)
+				.addParameter("formId", formId)
+				.addParameter("instanceId", instanceId);
+			return execute(query, q -> q.executeScalar(String.class),
+				"formId", formId, "instanceId", instanceId);
+		}
+	}
+
+	// Returns the submissions of a form lazily. To avoid reading every submission
+	// into memory at once, connection should be a read transaction (see
+	// AbstractModel.readTransaction()).
 	public static ResultSetIterable<Submission> forFormId(Connection connection,
 		String formId) {
 		Query query = connection
 			.createQuery(Queries.FOR_FORM_ID)
 			.addParameter("formId", formId);
-		log(query, "formId", formId);
-		return query.executeAndFetchLazy(Submission.class);
+		// The time recorded for a lazy query covers executing it and fetching the
+		// first rows.
+		return execute(query, q -> q.executeAndFetchLazy(Submission.class),
+			"formId", formId);
+	}
+
+	// Returns the submissions of a form whose IDs are at least fromId and less
+	// than toId lazily, in order of ID. As with forFormId(), connection should be
+	// a read transaction.
+	public static ResultSetIterable<Submission> rangeForFormId(
+		Connection connection, String formId, long fromId, long toId) {
+		Query query = connection
+			.createQuery(Queries.RANGE_FOR_FORM_ID)
+			.addParameter("formId", formId)
+			.addParameter("fromId", fromId)
+			.addParameter("toId", toId);
+		return execute(query, q -> q.executeAndFetchLazy(Submission.class),
+			"formId", formId, "fromId", fromId, "toId", toId);
+	}
+
+	/*
+	idRange() returns the minimum ID, the maximum ID, the number, and the sum of
+	the versions of the submissions of a form, or null if the form has no
+	submissions. The last three change whenever a submission of the form is
+	inserted or updated (see formVersion()). Use the overload that takes a
+	connection to read the range in the same transaction as the submissions
+	themselves.
+	 */
+	public static long[] idRange(Connection connection, String formId) {
+		Query query = connection
+			.createQuery(Queries.ID_RANGE)
+			.addParameter("formId", formId);
+		return rangeOf(execute(query,
+			q -> q.executeAndFetchTable().rows().get(0), "formId", formId));
+	}
+
+	// Returns the range of the submissions of a form whose IDs are less than
+	// toId, or null if there are none.
+	public static long[] idRange(Connection connection, String formId,
+		long toId) {
+		Query query = connection
+			.createQuery(Queries.ID_RANGE_BELOW)
+			.addParameter("formId", formId)
+			.addParameter("toId", toId);
+		return rangeOf(execute(query,
+			q -> q.executeAndFetchTable().rows().get(0),
+			"formId", formId, "toId", toId));
+	}
+
+	private static long[] rangeOf(Row row) {
+		Long count = row.getLong(2);
+		if (count == null || count == 0)
+			return null;
+		return new long[] {row.getLong(0), row.getLong(1), count, row.getLong(3)};
+	}
+
+	public static long[] idRange(String formId) {
+		try (Connection connection = connection()) {
+			return idRange(connection, formId);
+		}
 	}
 
-	public static List<Submission> sampleForFormId(String formId) {
+	// Returns up to limit submissions of a form in order of ID, starting after
+	// the specified ID. If afterId is null, pageForFormId() returns the first
+	// page. The query uses the (formId, id) index, so every page costs the same
+	// regardless of how far into the form it is.
+	public static List<Submission> pageForFormId(String formId, Long afterId,
+		int limit) {
 		try (Connection connection = connection()) {
+			long after = afterId != null ? afterId : 0;
 			Query query = connection
-				.createQuery(Queries.SAMPLE_FOR_FORM_ID)
-				.addParameter("formId", formId);
-			log(query, "formId", formId);
-			return query.executeAndFetch(Submission.class);
+				.createQuery(Queries.PAGE_FOR_FORM_ID)
+				.addParameter("formId", formId)
+				.addParameter("afterId", after)
+				.addParameter("limit", limit);
+			return execute(query, q -> q.executeAndFetch(Submission.class),
+				"formId", formId, "afterId", after, "limit", limit);
 		}
 	}
 
-	public static Submission findByFormAndInstance(String formId,
+	private static Submission fetchByFormAndInstance(String formId,
 		String instanceId) {
+		Submission submission;
 		try (Connection connection = connection()) {
 			Query query = connection
 				.createQuery(Queries.FIND_BY_INSTANCE_ID)
 				.addParameter("formId", formId)
 				.addParameter("instanceId", instanceId);
-			log(query, "formId", formId, "instanceId", instanceId);
-			return query.executeAndFetchFirst(Submission.class);
+			submission = execute(query,
+				q -> q.executeAndFetchFirst(Submission.class),
+				"formId", formId, "instanceId", instanceId);
+		}
+		if (submission != null) {
+			submission.persistedKey = submission.key();
+			submission.markClean();
+		}
+		return submission;
+	}
+
+	// Returns the submission with the specified formId and instanceId, or null if
+	// there is no such submission. The submission is read through the cache.
+	public static Submission findByFormAndInstance(String formId,
+		String instanceId) {
+		if (CACHE == null)
+			return fetchByFormAndInstance(formId, instanceId);
+		Key key = new Key(formId, instanceId);
+		Submission cached = CACHE.getIfPresent(key);
+		if (cached == null) {
+			long generation = GENERATIONS.get(key.stripe());
+			cached = fetchByFormAndInstance(formId, instanceId);
+			if (cached == null)
+				return null;
+			CACHE.put(key, cached);
+			// A save may have committed after the row was read. See CACHE.
+			if (GENERATIONS.get(key.stripe()) != generation)
+				CACHE.asMap().remove(key, cached);
 		}
+		return cached.copy();
 	}
 }
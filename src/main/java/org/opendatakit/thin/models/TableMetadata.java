@@ -1,8 +1,14 @@
 package org.opendatakit.thin.models;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /*
 TableMetadata encapsulates the metadata of a SQL table. It makes the following
@@ -12,10 +18,62 @@ assumptions:
 	2. It must have an additional column other than id. In theory, a table could
 	   have only the single column of id, but TableMetadata currently does not
 	   support that use case.
+
+A table may also have a column named version, which must be a bigint column
+that defaults to 0. Such a table is versioned: AbstractModel never writes the
+version column directly, but increments it with every update.
+
+Each column has an ordinal, its index in columnNames(). AbstractModel stores a
+record's values in an array indexed by ordinal. A set of columns is represented
+as a mask, in which bit n is set if the column with ordinal n is in the set, so
+a table may have at most 64 columns.
+
+TableMetadata also builds the SQL templates that AbstractModel uses to write
+records (see SqlTemplate). Each template is built the first time it is needed,
+then cached for the lifetime of the table.
  */
 public class TableMetadata {
+	private enum StatementType {
+		INSERT, INSERT_ALL, UPDATE, UPSERT
+	}
+
+	// Identifies a template by statement type, the mask of the columns that it
+	// writes, and the mask of its key columns.
+	private static class TemplateKey {
+		private final StatementType type;
+		private final long columns, keys;
+
+		public TemplateKey(StatementType type, long columns, long keys) {
+			this.type = type;
+			this.columns = columns;
+			this.keys = keys;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof TemplateKey))
+				return false;
+			TemplateKey key = (TemplateKey) other;
+			return type == key.type && columns == key.columns && keys == key.keys;
+		}
+
+		@Override
+		public int hashCode() {
+			return (type.hashCode() * 31 + Long.hashCode(columns)) * 31 +
+				Long.hashCode(keys);
+		}
+	}
+
 	private final String name;
 	private final Set<String> columnNames;
+	private final String[] columns;
+	private final Map<String, Integer> ordinals;
+	private final int idOrdinal, versionOrdinal;
+	// The mask of the columns that AbstractModel writes: every column other than
+	// id and version
+	private final long writableColumns;
+	private final ConcurrentMap<TemplateKey, SqlTemplate> templates =
+		new ConcurrentHashMap<>();
 
 	public TableMetadata(String name, String... columnNames) {
 		if (name == null)
@@ -30,6 +88,21 @@ public class TableMetadata {
 			.build();
 		if (this.columnNames.size() == 1)
 			throw new IllegalArgumentException("table must have more than one column");
+		if (this.columnNames.size() > Long.SIZE)
+			throw new IllegalArgumentException("table has too many columns");
+
+		columns = this.columnNames.toArray(new String[0]);
+		ImmutableMap.Builder<String, Integer> ordinals = ImmutableMap.builder();
+		long writable = 0;
+		for (int i = 0; i < columns.length; i++) {
+			ordinals.put(columns[i], i);
+			if (!columns[i].equals("id") && !columns[i].equals("version"))
+				writable |= 1L << i;
+		}
+		this.ordinals = ordinals.build();
+		writableColumns = writable;
+		idOrdinal = this.ordinals.get("id");
+		versionOrdinal = this.ordinals.getOrDefault("version", -1);
 	}
 
 	// Returns the table name.
@@ -41,4 +114,180 @@ public class TableMetadata {
 	public Set<String> columnNames() {
 		return columnNames;
 	}
+
+	// Returns true if the table has a version column.
+	public boolean versioned() {
+		return versionOrdinal >= 0;
+	}
+
+	// Returns the ordinal of the specified column, throwing an exception if no
+	// such column exists.
+	public int ordinal(String columnName) {
+		Integer ordinal = ordinals.get(columnName);
+		if (ordinal == null)
+			throw new IllegalArgumentException("no such column: " + columnName);
+		return ordinal;
+	}
+
+	// Returns the ordinal of the id column.
+	public int idOrdinal() {
+		return idOrdinal;
+	}
+
+	// Returns the ordinal of the version column, or -1 if the table is not
+	// versioned.
+	public int versionOrdinal() {
+		return versionOrdinal;
+	}
+
+	// Returns the number of columns.
+	public int columnCount() {
+		return columns.length;
+	}
+
+	// Returns the name of the column with the specified ordinal.
+	public String columnName(int ordinal) {
+		return columns[ordinal];
+	}
+
+	// Returns the mask of the specified columns.
+	public long mask(Iterable<String> columnNames) {
+		long mask = 0;
+		for (String columnName : columnNames)
+			mask |= 1L << ordinal(columnName);
+		return mask;
+	}
+
+	// Returns the mask of the columns that INSERT and UPDATE statements write.
+	public long writableColumns() {
+		return writableColumns;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* templates */
+
+	// Returns the ordinals of the columns in a mask, in order.
+	private int[] ordinals(long mask) {
+		int[] ordinals = new int[Long.bitCount(mask)];
+		int count = 0;
+		for (int i = 0; i < columns.length; i++) {
+			if ((mask & (1L << i)) != 0)
+				ordinals[count++] = i;
+		}
+		return ordinals;
+	}
+
+	// Returns the names of the columns in a mask, in ordinal order.
+	private String[] names(long mask) {
+		int[] ordinals = ordinals(mask);
+		String[] names = new String[ordinals.length];
+		for (int i = 0; i < ordinals.length; i++)
+			names[i] = columns[ordinals[i]];
+		return names;
+	}
+
+	private static String join(String[] names, String format, String separator) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i != 0)
+				builder.append(separator);
+			builder.append(String.format(format, names[i]));
+		}
+		return builder.toString();
+	}
+
+	private String returning() {
+		return versioned() ? " RETURNING id, version" : " RETURNING id";
+	}
+
+	private String insertSql(String[] names) {
+		if (names.length == 0)
+			return "INSERT INTO " + name + " DEFAULT VALUES";
+		return "INSERT INTO " + name + " (" + String.join(", ", names) +
+			") VALUES (" + join(names, "?", ", ") + ")";
+	}
+
+	private SqlTemplate buildTemplate(TemplateKey key) {
+		String[] values = names(key.columns), keys = names(key.keys);
+		String sql;
+		switch (key.type) {
+			case INSERT:
+				sql = insertSql(values) + " ON CONFLICT DO NOTHING" + returning();
+				break;
+			case INSERT_ALL:
+				sql = insertSql(values) + " ON CONFLICT DO NOTHING";
+				break;
+			case UPDATE: {
+				List<String> assignments = new ArrayList<>();
+				if (values.length > 0)
+					assignments.add(join(values, "%s = ?", ", "));
+				if (versioned())
+					assignments.add("version = version + 1");
+				// An UPDATE statement must set at least one column.
+				if (assignments.isEmpty())
+					assignments.add("id = id");
+				sql = "UPDATE " + name + " SET " + String.join(", ", assignments) +
+					" WHERE " + join(keys, "%s = ?", " AND ") + returning();
+				break;
+			}
+			case UPSERT: {
+				List<String> assignments = new ArrayList<>();
+				String[] updated = names(key.columns & ~key.keys);
+				if (updated.length > 0)
+					assignments.add(join(updated, "%1$s = EXCLUDED.%1$s", ", "));
+				if (versioned())
+					assignments.add("version = " + name + ".version + 1");
+				// DO NOTHING would not return the existing row.
+				if (assignments.isEmpty())
+					assignments.add(String.format("%1$s = EXCLUDED.%1$s", keys[0]));
+				sql = insertSql(values) +
+					" ON CONFLICT (" + String.join(", ", keys) + ")" +
+					" DO UPDATE SET " + String.join(", ", assignments) + returning();
+				// The key columns of an upsert appear only in the conflict target,
+				// not as parameters.
+				keys = new String[0];
+				break;
+			}
+			default:
+				throw new AssertionError();
+		}
+		return new SqlTemplate(sql, values, ordinals(key.columns), keys);
+	}
+
+	private SqlTemplate template(StatementType type, long columns, long keys) {
+		return templates.computeIfAbsent(
+			new TemplateKey(type, columns & writableColumns, keys),
+			this::buildTemplate);
+	}
+
+	// Returns the template of an INSERT statement that writes the specified
+	// columns, skips a row that conflicts with an existing one, and returns the
+	// id and version of the new row.
+	public SqlTemplate insert(long columns) {
+		return template(StatementType.INSERT, columns, 0);
+	}
+
+	// Returns the template of an INSERT statement for batches, which writes
+	// every writable column and skips a row that conflicts with an existing one.
+	public SqlTemplate insertAll() {
+		return template(StatementType.INSERT_ALL, writableColumns, 0);
+	}
+
+	// Returns the template of an UPDATE statement that writes the specified
+	// columns of the row with the specified key columns, and returns its id and
+	// version.
+	public SqlTemplate update(long columns, long keys) {
+		if (keys == 0)
+			throw new IllegalArgumentException("keys cannot be empty");
+		return template(StatementType.UPDATE, columns, keys);
+	}
+
+	// Returns the template of an INSERT statement that writes the specified
+	// columns and, if the row conflicts with an existing row on the key columns,
+	// updates the existing row instead. It returns the id and version of the row.
+	public SqlTemplate upsert(long columns, long keys) {
+		if (keys == 0)
+			throw new IllegalArgumentException("keys cannot be empty");
+		return template(StatementType.UPSERT, columns, keys);
+	}
 }
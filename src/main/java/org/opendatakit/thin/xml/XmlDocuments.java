@@ -0,0 +1,139 @@
+package org.opendatakit.thin.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+XmlDocuments splits text that contains a series of concatenated XML documents,
+optionally separated by whitespace. Each document may start with an XML
+declaration, comments, processing instructions, and a document type
+declaration. A document ends when its root element is closed.
+
+split() only scans for markup boundaries: it does not check that the documents
+are well-formed, which is left to the parser. Comments and processing
+instructions after the last complete document, which XML allows after the root
+element, belong to that document. Any other text after the last complete
+document is returned as a final document, so that it fails to parse rather than
+being silently dropped.
+ */
+public class XmlDocuments {
+	private XmlDocuments() { }
+
+	// Returns the index just past the end of the first occurrence of terminator
+	// at or after from, or text.length() if there is no such occurrence.
+	private static int skipPast(String text, String terminator, int from) {
+		int index = text.indexOf(terminator, from);
+		return index >= 0 ? index + terminator.length() : text.length();
+	}
+
+	// Returns the index of the '>' that ends the tag or declaration starting at
+	// from, skipping quoted strings and, if subset is true, the internal subset
+	// of a document type declaration. Returns -1 if the tag is not closed.
+	private static int tagEnd(String text, int from, boolean subset) {
+		char quote = 0;
+		int brackets = 0;
+		for (int i = from; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			}
+			else if (c == '"' || c == '\'') {
+				quote = c;
+			}
+			else if (subset && c == '[') {
+				brackets++;
+			}
+			else if (subset && c == ']') {
+				brackets--;
+			}
+			else if (c == '>' && brackets <= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static List<String> split(String text) {
+		if (text == null)
+			throw new NullPointerException();
+		List<String> documents = new ArrayList<>();
+		// The start of the current document, or -1 if we are between documents
+		int start = -1;
+		// The number of open elements in the current document
+		int depth = 0;
+		// True while the current document contains only complete comments and
+		// processing instructions other than an XML declaration
+		boolean misc = false;
+		// The end of the last complete document
+		int lastEnd = 0;
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (start < 0) {
+				if (Character.isWhitespace(c)) {
+					i++;
+					continue;
+				}
+				start = i;
+				misc = true;
+			}
+
+			if (c != '<') {
+				if (!Character.isWhitespace(c))
+					misc = false;
+				i++;
+			}
+			else if (text.startsWith("<?", i)) {
+				boolean declaration = text.startsWith("<?xml", i) &&
+					text.length() > i + 5 && Character.isWhitespace(text.charAt(i + 5));
+				if (declaration || text.indexOf("?>", i + 2) < 0)
+					misc = false;
+				i = skipPast(text, "?>", i + 2);
+			}
+			else if (text.startsWith("<!--", i)) {
+				if (text.indexOf("-->", i + 4) < 0)
+					misc = false;
+				i = skipPast(text, "-->", i + 4);
+			}
+			else if (text.startsWith("<![CDATA[", i)) {
+				misc = false;
+				i = skipPast(text, "]]>", i + 9);
+			}
+			else if (text.startsWith("<!", i)) {
+				// A document type declaration
+				misc = false;
+				int end = tagEnd(text, i + 2, true);
+				i = end >= 0 ? end + 1 : text.length();
+			}
+			else {
+				misc = false;
+				int end = tagEnd(text, i + 1, false);
+				if (end < 0)
+					break;
+				boolean endTag = text.charAt(i + 1) == '/';
+				boolean emptyElementTag = !endTag && text.charAt(end - 1) == '/';
+				if (endTag)
+					depth--;
+				else if (!emptyElementTag)
+					depth++;
+				i = end + 1;
+				// The root element has been closed.
+				if (depth <= 0) {
+					documents.add(text.substring(start, i));
+					start = -1;
+					depth = 0;
+					lastEnd = i;
+				}
+			}
+		}
+		if (start >= 0 && misc && !documents.isEmpty()) {
+			int last = documents.size() - 1;
+			documents.set(last, documents.get(last) + text.substring(lastEnd));
+		}
+		else if (start >= 0) {
+			documents.add(text.substring(start));
+		}
+		return documents;
+	}
+}
@@ -0,0 +1,158 @@
+package org.opendatakit.thin.xml;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+XmlParser parses XML documents, either into DOM trees or as StAX streams.
+DocumentBuilder is not thread-safe, so XmlParser keeps a pool of idle builders:
+each parse checks out a builder, uses it on a single thread, then resets it and
+returns it to the pool.
+The pool grows to the number of concurrent parses, so it scales with the number
+of worker threads, and it retains at most MAX_IDLE builders.
+
+All builders come from a single factory, which is configured once with secure
+processing enabled and with external entities and DTDs disabled. Stream readers
+come from a single XMLInputFactory, which is configured to match. It reports
+CDATA sections as such and does not coalesce text, so that StAX events
+correspond to the DOM nodes that a builder would create.
+ */
+public class XmlParser {
+	private static final int MAX_IDLE =
+		Math.max(64, Runtime.getRuntime().availableProcessors() * 4);
+
+	private static final DocumentBuilderFactory FACTORY = newFactory();
+	private static final Queue<DocumentBuilder> IDLE =
+		new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger IDLE_COUNT = new AtomicInteger();
+
+	private static final String REPORT_CDATA =
+		"http://java.sun.com/xml/stream/properties/report-cdata-event";
+	private static final XMLInputFactory STREAM_FACTORY = newStreamFactory();
+
+	// Parse errors are reported through exceptions, so there is no need for the
+	// default error handler to also print them to stderr.
+	private static final ErrorHandler ERROR_HANDLER = new ErrorHandler() {
+		public void warning(SAXParseException e) { }
+
+		public void error(SAXParseException e) throws SAXException {
+			throw e;
+		}
+
+		public void fatalError(SAXParseException e) throws SAXException {
+			throw e;
+		}
+	};
+
+	private XmlParser() { }
+
+	private static DocumentBuilderFactory newFactory() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature(
+				"http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature(
+				"http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setFeature(
+				"http://apache.org/xml/features/nonvalidating/load-external-dtd",
+				false);
+		}
+		catch (ParserConfigurationException e) {
+			throw new RuntimeException(e);
+		}
+		factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+		factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+		factory.setXIncludeAware(false);
+		return factory;
+	}
+
+	private static XMLInputFactory newStreamFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// DocumentBuilderFactory is not namespace-aware by default.
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+		if (factory.isPropertySupported(REPORT_CDATA))
+			factory.setProperty(REPORT_CDATA, true);
+		return factory;
+	}
+
+	private static DocumentBuilder checkOut() {
+		DocumentBuilder builder = IDLE.poll();
+		if (builder != null) {
+			IDLE_COUNT.decrementAndGet();
+		}
+		else {
+			try {
+				builder = FACTORY.newDocumentBuilder();
+			}
+			catch (ParserConfigurationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		// reset() restores the default error handler, so we set it on every
+		// checkout.
+		builder.setErrorHandler(ERROR_HANDLER);
+		return builder;
+	}
+
+	private static void checkIn(DocumentBuilder builder) {
+		builder.reset();
+		if (IDLE_COUNT.incrementAndGet() <= MAX_IDLE)
+			IDLE.offer(builder);
+		else
+			IDLE_COUNT.decrementAndGet();
+	}
+
+	public static Document parse(InputSource source)
+		throws IOException, SAXException {
+		DocumentBuilder builder = checkOut();
+		try {
+			return builder.parse(source);
+		}
+		finally {
+			checkIn(builder);
+		}
+	}
+
+	public static Document parse(String xml) throws IOException, SAXException {
+		return parse(new InputSource(new StringReader(xml)));
+	}
+
+	// Returns a StAX reader for the specified XML. The reader is not namespace
+	// aware.
+	public static XMLStreamReader streamReader(String xml)
+		throws XMLStreamException {
+		return STREAM_FACTORY.createXMLStreamReader(new StringReader(xml));
+	}
+
+	// Returns the qualified name of the current element of a reader that is not
+	// namespace-aware. This is the same as the node name of the element in a DOM
+	// tree.
+	public static String qualifiedName(XMLStreamReader reader) {
+		String prefix = reader.getPrefix();
+		String localName = reader.getLocalName();
+		if (prefix == null || prefix.isEmpty())
+			return localName;
+		return prefix + ':' + localName;
+	}
+}
@@ -0,0 +1,189 @@
+package org.opendatakit.thin.controllers;
+
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/*
+ResponseWriter must encode characters exactly as String.getBytes() does with
+UTF-8, including the replacement of unpaired surrogates, however the characters
+are split across writes and across its buffer.
+ */
+public class ResponseWriterTest {
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+	private HttpServletResponse response() throws IOException {
+		ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener listener) { }
+		};
+		HttpServletResponse response = createNiceMock(HttpServletResponse.class);
+		expect(response.getOutputStream()).andReturn(out).anyTimes();
+		expect(response.isCommitted()).andReturn(false).anyTimes();
+		replay(response);
+		return response;
+	}
+
+	private static byte[] utf8(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// Writes text one character at a time, as a String, and as a char array, and
+	// checks each result against String.getBytes().
+	private void assertEncodes(String text) throws IOException {
+		ResponseWriter writer = new ResponseWriter(response());
+		for (int i = 0; i < text.length(); i++)
+			writer.write(text.charAt(i));
+		writer.close();
+		assertArrayEquals(utf8(text), body.toByteArray());
+
+		body.reset();
+		writer = new ResponseWriter(response());
+		writer.write(text);
+		writer.close();
+		assertArrayEquals(utf8(text), body.toByteArray());
+
+		body.reset();
+		writer = new ResponseWriter(response());
+		writer.write(text.toCharArray());
+		writer.close();
+		assertArrayEquals(utf8(text), body.toByteArray());
+		assertEquals(body.size(), writer.bytesWritten());
+		body.reset();
+	}
+
+	@Test
+	public void encoding() throws IOException {
+		assertEncodes("");
+		assertEncodes("plain ASCII");
+		assertEncodes("two bytes: é ñ ß");
+		assertEncodes("three bytes: € 中文 ￿");
+		assertEncodes("four bytes: 😀 𐀀 􏿿");
+	}
+
+	@Test
+	public void unpairedSurrogates() throws IOException {
+		assertEncodes("\ud83d");
+		assertEncodes("\ude00");
+		assertEncodes("a\ud83db");
+		assertEncodes("a\ude00b");
+		assertEncodes("\ud83d😀");
+		assertEncodes("\ude00\ud83d");
+		assertEncodes("\ud83dé");
+	}
+
+	@Test
+	public void surrogatePairAcrossWrites() throws IOException {
+		ResponseWriter writer = new ResponseWriter(response());
+		writer.write("a\ud83d");
+		writer.append("\ude00b");
+		writer.close();
+		assertArrayEquals(utf8("a😀b"), body.toByteArray());
+	}
+
+	@Test
+	public void unpairedSurrogateBeforeBytes() throws IOException {
+		ResponseWriter writer = new ResponseWriter(response());
+		writer.write("a\ud83d");
+		writer.writeBytes(new byte[] {'b'}, 0, 1);
+		writer.write('\ude00');
+		writer.writeByte('c');
+		writer.close();
+		assertArrayEquals(utf8("a\ud83db\ude00c"), body.toByteArray());
+	}
+
+	@Test
+	public void acrossBuffers() throws IOException {
+		// Multibyte characters fall on every offset relative to the end of the
+		// 16 KiB buffer.
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			text.append('a');
+			text.append(i % 3 == 0 ? "é" : i % 3 == 1 ? "€" : "😀");
+		}
+		assertEncodes(text.toString());
+	}
+
+	@Test
+	public void largeBytes() throws IOException {
+		byte[] bytes = new byte[40000];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) i;
+		ResponseWriter writer = new ResponseWriter(response());
+		writer.write("head");
+		writer.writeBytes(bytes, 0, bytes.length);
+		writer.write("tail");
+		writer.close();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(utf8("head"));
+		expected.write(bytes);
+		expected.write(utf8("tail"));
+		assertArrayEquals(expected.toByteArray(), body.toByteArray());
+		assertEquals(body.size(), writer.bytesWritten());
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int n; (n = in.read(buffer)) >= 0; )
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void compression() throws IOException {
+		String text = "compressed 😀 text ";
+		StringBuilder repeated = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			repeated.append(text);
+
+		ResponseWriter writer = new ResponseWriter(response(), "gzip");
+		writer.write(repeated.toString());
+		writer.close();
+		assertArrayEquals(utf8(repeated.toString()), readAll(new GZIPInputStream(
+			new ByteArrayInputStream(body.toByteArray()))));
+		// bytesWritten() counts the bytes before compression.
+		assertEquals(utf8(repeated.toString()).length, writer.bytesWritten());
+
+		body.reset();
+		writer = new ResponseWriter(response(), "deflate");
+		writer.write(repeated.toString());
+		writer.close();
+		assertArrayEquals(utf8(repeated.toString()), readAll(
+			new InflaterInputStream(new ByteArrayInputStream(body.toByteArray()))));
+	}
+
+	@Test
+	public void discard() throws IOException {
+		ResponseWriter writer = new ResponseWriter(response());
+		writer.write("buffered");
+		writer.discard();
+		writer.close();
+		assertEquals(0, body.size());
+	}
+}
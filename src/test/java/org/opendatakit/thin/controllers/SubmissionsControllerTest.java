@@ -0,0 +1,42 @@
+package org.opendatakit.thin.controllers;
+
+import org.junit.Test;
+import org.opendatakit.thin.controllers.SubmissionsController.GetFormSubmissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class SubmissionsControllerTest {
+	private static void assertInvalidCursor(String cursor) {
+		try {
+			GetFormSubmissions.decodeCursor(cursor);
+			fail(cursor);
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void cursorRoundTrip() {
+		long[] ids = {0, 1, 255, 256, 1L << 40, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+		for (long id : ids) {
+			String cursor = GetFormSubmissions.encodeCursor(id);
+			assertEquals(id, GetFormSubmissions.decodeCursor(cursor));
+			// Cursors are safe to put in a URL without escaping.
+			assertFalse(cursor, cursor.matches(".*[+/=].*"));
+		}
+	}
+
+	@Test
+	public void invalidCursors() {
+		assertInvalidCursor("");
+		assertInvalidCursor("not a cursor");
+		assertInvalidCursor("AAAA");
+		// Nine bytes rather than eight
+		assertInvalidCursor("AAAAAAAAAAAA");
+		// Standard rather than URL-safe base64
+		assertInvalidCursor("/////////w");
+	}
+}
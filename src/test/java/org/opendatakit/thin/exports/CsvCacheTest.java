@@ -0,0 +1,205 @@
+package org.opendatakit.thin.exports;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+CsvCache must append the submissions that were inserted since a form's file was
+last brought up to date, and rebuild the file when a submission was updated or
+one with a lower ID appeared. The submissions table is simulated by
+SubmissionsDriver, which records the range queries that show which one
+happened.
+ */
+public class CsvCacheTest {
+	private static final String FORM_ID = "form";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private CsvCache cache;
+
+	@BeforeClass
+	public static void registerDriver() throws Exception {
+		SubmissionsDriver.register();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		SubmissionsDriver.clear();
+		cache = new CsvCache(folder.getRoot().toPath(), Long.MAX_VALUE);
+	}
+
+	private static String xml(String name, int age) {
+		return "<data id=\"" + FORM_ID + "\"><name>" + name + "</name><age>" +
+			age + "</age></data>";
+	}
+
+	private static void put(long id, String name, int age, long version) {
+		SubmissionsDriver.put(id, FORM_ID, "uuid:" + id, xml(name, age), version);
+	}
+
+	// Opens the export of a form and returns its contents and version.
+	private String[] open(String formId) throws Exception {
+		try (CsvCache.Export export = cache.open(formId)) {
+			if (export.file() == null)
+				return new String[] {null, export.version()};
+			ByteBuffer buffer = ByteBuffer.allocate((int) export.length());
+			while (buffer.hasRemaining()) {
+				if (export.file().read(buffer, buffer.position()) < 0)
+					break;
+			}
+			return new String[] {
+				new String(buffer.array(), StandardCharsets.UTF_8), export.version()
+			};
+		}
+	}
+
+	@Test
+	public void emptyForm() throws Exception {
+		String[] export = open(FORM_ID);
+		assertNull(export[0]);
+		assertEquals("0:0:0", export[1]);
+		assertEquals(0, cache.totalBytes());
+	}
+
+	@Test
+	public void append() throws Exception {
+		put(1, "Ana", 34, 0);
+		put(2, "Bo", 35, 0);
+		assertEquals("name,age\nAna,34\nBo,35\n", open(FORM_ID)[0]);
+		assertEquals(Collections.singletonList(1L),
+			SubmissionsDriver.takeRangeQueries());
+
+		put(3, "Cy", 36, 0);
+		String[] export = open(FORM_ID);
+		assertEquals("name,age\nAna,34\nBo,35\nCy,36\n", export[0]);
+		assertEquals("3:3:0", export[1]);
+		assertEquals(Collections.singletonList(3L),
+			SubmissionsDriver.takeRangeQueries());
+
+		// Nothing has changed, so nothing is read.
+		assertEquals(export[0], open(FORM_ID)[0]);
+		assertEquals(Collections.emptyList(), SubmissionsDriver.takeRangeQueries());
+		assertEquals(export[0].length(), cache.totalBytes());
+	}
+
+	@Test
+	public void rebuildAfterUpdate() throws Exception {
+		put(1, "Ana", 34, 0);
+		put(2, "Bo", 35, 0);
+		open(FORM_ID);
+		SubmissionsDriver.takeRangeQueries();
+
+		put(1, "Ana", 40, 1);
+		put(3, "Cy", 36, 0);
+		String[] export = open(FORM_ID);
+		assertEquals("name,age\nAna,40\nBo,35\nCy,36\n", export[0]);
+		assertEquals("3:3:1", export[1]);
+		// The sum of the versions up to the mark differs, so the file is rebuilt
+		// without first appending the new submission.
+		assertEquals(Collections.singletonList(1L),
+			SubmissionsDriver.takeRangeQueries());
+
+		// An update without a new submission is also a rebuild.
+		put(2, "Bo", 41, 1);
+		assertEquals("name,age\nAna,40\nBo,41\nCy,36\n", open(FORM_ID)[0]);
+		assertEquals(Collections.singletonList(1L),
+			SubmissionsDriver.takeRangeQueries());
+	}
+
+	@Test
+	public void rebuildAfterLateCommit() throws Exception {
+		put(1, "Ana", 34, 0);
+		put(3, "Cy", 36, 0);
+		open(FORM_ID);
+		SubmissionsDriver.takeRangeQueries();
+
+		// A submission with a lower ID than the mark commits late.
+		put(2, "Bo", 35, 0);
+		String[] export = open(FORM_ID);
+		assertEquals("name,age\nAna,34\nBo,35\nCy,36\n", export[0]);
+		assertEquals(Collections.singletonList(1L),
+			SubmissionsDriver.takeRangeQueries());
+	}
+
+	@Test
+	public void busy() throws Exception {
+		put(1, "Ana", 34, 0);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch finish = new CountDownLatch(1);
+		SubmissionsDriver.setRangeHook(() -> {
+			started.countDown();
+			try {
+				finish.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		FutureTask<String[]> building = new FutureTask<>(() -> open(FORM_ID));
+		new Thread(building).start();
+		started.await();
+		// Another request is building the file, so the export is not waited for.
+		try (CsvCache.Export export = cache.open(FORM_ID)) {
+			assertNull(export);
+		}
+		finish.countDown();
+		assertEquals("name,age\nAna,34\n", building.get()[0]);
+	}
+
+	@Test
+	public void otherForms() throws Exception {
+		put(1, "Ana", 34, 0);
+		SubmissionsDriver.put(2, "other", "uuid:2",
+			"<data id=\"other\"><color>red</color></data>", 0);
+		assertEquals("name,age\nAna,34\n", open(FORM_ID)[0]);
+		assertEquals("color\nred\n", open("other")[0]);
+		assertNull(open("missing")[0]);
+	}
+
+	@Test
+	public void eviction() throws Exception {
+		cache = new CsvCache(folder.getRoot().toPath(), 20);
+		put(1, "Ana", 34, 0);
+		SubmissionsDriver.put(2, "other", "uuid:2",
+			"<data id=\"other\"><color>red</color></data>", 0);
+		// name,age\nAna,34\n is 16 bytes, and color\nred\n is 10.
+		open(FORM_ID);
+		assertEquals(16, cache.totalBytes());
+		open("other");
+		assertEquals(10, cache.totalBytes());
+		SubmissionsDriver.takeRangeQueries();
+
+		// The evicted form is rebuilt on its next export.
+		assertEquals("name,age\nAna,34\n", open(FORM_ID)[0]);
+		assertEquals(Collections.singletonList(1L),
+			SubmissionsDriver.takeRangeQueries());
+		assertEquals(16, cache.totalBytes());
+	}
+
+	@Test
+	public void clearsDirectory() throws Exception {
+		Path directory = folder.newFolder("cache").toPath();
+		Path stale = Files.write(directory.resolve("stale.csv"), new byte[] {1});
+		Path other = Files.write(directory.resolve("other.txt"), new byte[] {1});
+		new CsvCache(directory, Long.MAX_VALUE);
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(other));
+	}
+}
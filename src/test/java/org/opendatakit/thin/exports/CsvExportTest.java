@@ -0,0 +1,224 @@
+package org.opendatakit.thin.exports;
+
+import com.google.common.base.CharMatcher;
+import org.junit.Test;
+import org.opendatakit.thin.xml.XmlParser;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+CsvExport must render the same bytes as the DOM implementation that it
+replaced. domHeaders() and domRow() below are that implementation, copied from
+GetFormSubmissions before CsvExport was introduced: it parsed each submission
+into a DOM tree, then looked up each column with getElementsByTagName().
+ */
+public class CsvExportTest {
+	private static final CharMatcher REQUIRES_QUOTES =
+		CharMatcher.anyOf(",\"\r\n");
+
+	/* ------------------------------------------------------------------------ */
+				/* DOM implementation */
+
+	private static Element root(String xml) throws Exception {
+		return XmlParser.parse(xml).getDocumentElement();
+	}
+
+	private static List<String> domHeaders(String xml) throws Exception {
+		List<String> headers = new ArrayList<>();
+		NodeList children = root(xml).getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE)
+				headers.add(child.getNodeName());
+		}
+		return headers;
+	}
+
+	private static CharSequence escapeValue(String value) {
+		boolean requiresQuotes = REQUIRES_QUOTES.matchesAnyOf(value);
+		StringBuilder escaped = new StringBuilder();
+		if (requiresQuotes)
+			escaped.append('"');
+		escaped.append(value.replace("\"", "\"\""));
+		if (requiresQuotes)
+			escaped.append('"');
+		return escaped;
+	}
+
+	private static void streamValue(Element root, String field,
+		StringBuilder out) {
+		NodeList fieldNodes = root.getElementsByTagName(field);
+		if (fieldNodes.getLength() == 0)
+			return;
+		String value = null;
+		NodeList contentNodes = fieldNodes.item(0).getChildNodes();
+		if (contentNodes.getLength() == 1) {
+			Node contentNode = contentNodes.item(0);
+			if (contentNode.getNodeType() == Node.TEXT_NODE)
+				value = contentNode.getTextContent();
+		}
+		else if (contentNodes.getLength() > 1) {
+			value = "(repeat group)";
+		}
+		if (value != null)
+			out.append(escapeValue(value));
+	}
+
+	private static String domRow(String xml, List<String> fields)
+		throws Exception {
+		Element root = root(xml);
+		StringBuilder out = new StringBuilder();
+		boolean first = true;
+		for (String field : fields) {
+			if (!first)
+				out.append(',');
+			streamValue(root, field, out);
+			first = false;
+		}
+		return out.append('\n').toString();
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* tests */
+
+	private static String row(String xml, List<String> headers)
+		throws Exception {
+		StringBuilder out = new StringBuilder();
+		new CsvExport(headers).writeRow(xml, out);
+		return out.toString();
+	}
+
+	// Checks that the first submission's headers and every submission's row are
+	// the same as with the DOM implementation.
+	private static void assertSameAsDom(String... xml) throws Exception {
+		List<String> headers = CsvExport.headers(xml[0]);
+		assertEquals(domHeaders(xml[0]), headers);
+		CsvExport export = new CsvExport(headers);
+		for (String submission : xml) {
+			StringBuilder out = new StringBuilder();
+			export.writeRow(submission, out);
+			assertEquals(submission, domRow(submission, headers), out.toString());
+		}
+	}
+
+	@Test
+	public void plainFields() throws Exception {
+		assertSameAsDom(
+			"<data id=\"f\"><name>Ana</name><age>34</age><empty/></data>",
+			"<data id=\"f\"><age>35</age><name>Bo</name><empty></empty></data>");
+		assertEquals("Ana,34,\n", row(
+			"<data><name>Ana</name><age>34</age><empty/></data>",
+			Arrays.asList("name", "age", "empty")));
+	}
+
+	@Test
+	public void missingFields() throws Exception {
+		assertSameAsDom(
+			"<data><a>1</a><b>2</b><c>3</c></data>",
+			"<data><b>2</b></data>",
+			"<data/>");
+		assertEquals(",2,\n", row("<data><b>2</b></data>",
+			Arrays.asList("a", "b", "c")));
+	}
+
+	@Test
+	public void escaping() throws Exception {
+		assertSameAsDom(
+			"<data><a>x</a><b>y</b><c>z</c><d>w</d></data>",
+			"<data><a>north, east</a><b>say \"hi\"</b><c>line\nbreak</c>" +
+				"<d>cr\rhere</d></data>",
+			"<data><a>\"</a><b>,</b><c>plain</c><d>ünïcödé</d>" +
+				"</data>");
+	}
+
+	@Test
+	public void entities() throws Exception {
+		assertSameAsDom(
+			"<data><a>x</a><b>y</b></data>",
+			"<data><a>a &amp; b &lt;c&gt;</a><b>&#x41;&#66;&quot;&apos;</b></data>",
+			"<data><a>&amp;</a><b>text &amp; more text &amp; more</b></data>");
+	}
+
+	@Test
+	public void cdata() throws Exception {
+		assertSameAsDom(
+			"<data><a>x</a><b>y</b><c>z</c></data>",
+			"<data><a><![CDATA[only cdata]]></a><b>text<![CDATA[ and cdata]]></b>" +
+				"<c><![CDATA[<not an element>]]></c></data>",
+			"<data><a><![CDATA[]]></a><b><![CDATA[a]]><![CDATA[b]]></b></data>");
+	}
+
+	@Test
+	public void commentsAndProcessingInstructions() throws Exception {
+		assertSameAsDom(
+			"<data><a>x</a><b>y</b><c>z</c><d>w</d></data>",
+			"<data><a><!-- only a comment --></a><b>text<!-- comment --></b>" +
+				"<c><!-- comment -->text</c><d>te<!-- split -->xt</d></data>",
+			"<data><a><?pi value?></a><b>text<?pi value?></b></data>");
+	}
+
+	@Test
+	public void repeatGroups() throws Exception {
+		String member = "<member><name>M</name><age>1</age></member>";
+		assertSameAsDom(
+			"<data><village>V</village>" + member + "<size>2</size></data>",
+			"<data><village>W</village>" + member + member + "<size>2</size></data>",
+			"<data><village>X</village><member>\n  <name>N</name>\n</member></data>");
+		assertEquals("V,(repeat group),2\n", row(
+			"<data><village>V</village>" + member + "<size>2</size></data>",
+			Arrays.asList("village", "member", "size")));
+	}
+
+	@Test
+	public void nestedMatches() throws Exception {
+		// A column's element may appear below another column's element, and the
+		// first element in document order wins, at any depth.
+		assertSameAsDom(
+			"<data><outer>o</outer><inner>i</inner><a>x</a></data>",
+			"<data><outer><inner>nested</inner></outer><inner>top</inner>" +
+				"<a>x</a></data>",
+			"<data><group><a>deep</a></group><a>shallow</a><outer>o</outer></data>",
+			"<data><outer><outer>twice</outer></outer></data>",
+			"<data><outer><inner><a>1</a></inner><a>2</a></outer></data>");
+	}
+
+	@Test
+	public void duplicateHeaders() throws Exception {
+		assertSameAsDom(
+			"<data><a>1</a><b>2</b><a>3</a></data>",
+			"<data><a>4</a><b>5</b><a>6</a></data>");
+	}
+
+	@Test
+	public void namespacePrefixesAndWhitespace() throws Exception {
+		assertSameAsDom(
+			"<data xmlns:jr=\"http://openrosa.org/javarosa\">\n" +
+				"  <jr:a>x</jr:a>\n  <b> spaced </b>\n  <c>\n  </c>\n</data>",
+			"<data xmlns:jr=\"http://openrosa.org/javarosa\"><jr:a>y</jr:a>" +
+				"<b>\t</b><c/></data>");
+	}
+
+	@Test
+	public void noHeaders() throws Exception {
+		assertEquals(Arrays.asList(), CsvExport.headers("<data>text</data>"));
+		StringBuilder out = new StringBuilder();
+		new CsvExport(Arrays.asList()).writeHeaders(out);
+		assertEquals("", out.toString());
+	}
+
+	@Test
+	public void largeText() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			text.append("chunk ").append(i).append(i % 100 == 0 ? " &amp; " : "");
+		assertSameAsDom("<data><a>x</a><b>y</b></data>",
+			"<data><a>" + text + "</a><b><![CDATA[" + text + "]]></b></data>");
+	}
+}
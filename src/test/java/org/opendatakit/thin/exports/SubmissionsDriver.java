@@ -0,0 +1,134 @@
+package org.opendatakit.thin.exports;
+
+import org.opendatakit.thin.models.FakeDriver;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+SubmissionsDriver is a JDBC driver backed by an in-memory submissions table,
+so that CsvCache can be tested without a database. It accepts URLs that start
+with jdbc:submissions:, and the test profile sets DATABASE_URL to such a URL
+(see the surefire configuration in pom.xml).
+
+It answers only the queries that CsvCache runs, Submission.idRange() and
+Submission.rangeForFormId(), and it records the fromId of each range query, so
+that a test can tell an append from a rebuild. A test may also run a hook
+before each range query, for example, to hold it up. Transactions are ignored:
+every query sees the table as it is.
+ */
+class SubmissionsDriver extends FakeDriver {
+	private static final String[] ID_RANGE_COLUMNS =
+		{"min", "max", "count", "coalesce"};
+	private static final String[] SUBMISSION_COLUMNS =
+		{"id", "formId", "instanceId", "storedXml", "version"};
+
+	// Maps IDs to rows: id, formId, instanceId, xml, version. Guarded by the
+	// class.
+	private static final TreeMap<Long, Object[]> ROWS = new TreeMap<>();
+	private static final List<Long> RANGE_QUERIES = new ArrayList<>();
+	private static volatile Runnable rangeHook;
+
+	private SubmissionsDriver() {
+		super("jdbc:submissions:");
+	}
+
+	static void register() {
+		register(new SubmissionsDriver());
+	}
+
+	static synchronized void clear() {
+		ROWS.clear();
+		RANGE_QUERIES.clear();
+		rangeHook = null;
+	}
+
+	// Runs hook on the querying thread before each range query, or no hook if
+	// hook is null.
+	static void setRangeHook(Runnable hook) {
+		rangeHook = hook;
+	}
+
+	// Inserts or replaces the submission with the specified ID.
+	static synchronized void put(long id, String formId, String instanceId,
+		String xml, long version) {
+		ROWS.put(id, new Object[] {id, formId, instanceId, xml, version});
+	}
+
+	// Returns the fromId of each range query since the last call, then forgets
+	// them.
+	static synchronized List<Long> takeRangeQueries() {
+		List<Long> queries = new ArrayList<>(RANGE_QUERIES);
+		RANGE_QUERIES.clear();
+		return queries;
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* queries */
+
+	private static synchronized List<Object[]> idRange(String formId,
+		long toId) {
+		Long min = null, max = null;
+		long count = 0, versionSum = 0;
+		for (Object[] row : ROWS.headMap(toId).values()) {
+			if (!row[1].equals(formId))
+				continue;
+			long id = (Long) row[0];
+			if (min == null)
+				min = id;
+			max = id;
+			count++;
+			versionSum += (Long) row[4];
+		}
+		List<Object[]> rows = new ArrayList<>();
+		rows.add(new Object[] {min, max, count, versionSum});
+		return rows;
+	}
+
+	private static synchronized List<Object[]> range(String formId, long fromId,
+		long toId) {
+		RANGE_QUERIES.add(fromId);
+		List<Object[]> rows = new ArrayList<>();
+		for (Object[] row : ROWS.subMap(fromId, toId).values()) {
+			if (row[1].equals(formId))
+				rows.add(row.clone());
+		}
+		return rows;
+	}
+
+	@Override
+	protected PreparedStatement statement(String sql) {
+		Map<Integer, Object> parameters = new HashMap<>();
+		return stub(PreparedStatement.class, (proxy, method, args) -> {
+			String name = method.getName();
+			if (name.startsWith("set") && args != null && args.length >= 2 &&
+				args[0] instanceof Integer) {
+				parameters.put((Integer) args[0], args[1]);
+				return null;
+			}
+			if (!name.equals("executeQuery"))
+				return null;
+			if (sql.contains("count(*)")) {
+				long toId = sql.contains("id < ?") ?
+					((Number) parameters.get(2)).longValue() : Long.MAX_VALUE;
+				return resultSet(ID_RANGE_COLUMNS,
+					idRange((String) parameters.get(1), toId));
+			}
+			if (sql.contains("id >= ?")) {
+				Runnable hook = rangeHook;
+				if (hook != null)
+					hook.run();
+				return resultSet(SUBMISSION_COLUMNS, range(
+					(String) parameters.get(1),
+					((Number) parameters.get(2)).longValue(),
+					((Number) parameters.get(3)).longValue()));
+			}
+			throw new SQLException("unsupported query: " + sql);
+		});
+	}
+}
@@ -0,0 +1,178 @@
+package org.opendatakit.thin.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+IngestLog must recover every synced record after the checkpoint when it is
+reopened, ending the log at the first record that is incomplete or corrupt.
+The segments are 64 bytes, so a record of up to 56 bytes fits in one.
+ */
+public class IngestLogTest {
+	private static final int SEGMENT_SIZE = 64;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory() {
+		return folder.getRoot().toPath();
+	}
+
+	private IngestLog open() throws IOException {
+		return new IngestLog(directory(), SEGMENT_SIZE);
+	}
+
+	private static long append(IngestLog log, String... records)
+		throws IOException {
+		long position = 0;
+		for (String record : records)
+			position = log.append(record.getBytes(StandardCharsets.UTF_8));
+		log.sync(position);
+		return position;
+	}
+
+	private static List<String> read(IngestLog log, long position) {
+		List<byte[]> records = new ArrayList<>();
+		log.read(position, Integer.MAX_VALUE, records);
+		return records
+			.stream()
+			.map(record -> new String(record, StandardCharsets.UTF_8))
+			.collect(Collectors.toList());
+	}
+
+	private List<String> segmentFiles() throws IOException {
+		try (Stream<Path> files = Files.list(directory())) {
+			return files
+				.map(file -> file.getFileName().toString())
+				.filter(name -> name.endsWith(".segment"))
+				.sorted()
+				.collect(Collectors.toList());
+		}
+	}
+
+	// Overwrites bytes of a segment file, creating it if it does not exist, as a
+	// crash during a write might.
+	private void overwrite(long segment, int offset, byte[] bytes)
+		throws IOException {
+		Path file = directory().resolve(String.format("%020d.segment", segment));
+		try (FileChannel channel =
+			FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(bytes), offset);
+		}
+	}
+
+	@Test
+	public void recoversSyncedRecords() throws IOException {
+		try (IngestLog log = open()) {
+			// The third record does not fit after the first two, so it starts the
+			// second segment.
+			long position = append(log, "first", "second",
+				"a third record that is too long to fit here");
+			assertEquals(SEGMENT_SIZE + 8 + 43, position);
+		}
+		try (IngestLog log = open()) {
+			assertEquals(Arrays.asList("first", "second",
+				"a third record that is too long to fit here"), read(log, 0));
+			// New records continue after the recovered ones.
+			long position = append(log, "4th");
+			assertEquals(SEGMENT_SIZE + 8 + 43 + 8 + 3, position);
+		}
+		try (IngestLog log = open()) {
+			assertEquals(4, read(log, 0).size());
+		}
+	}
+
+	@Test
+	public void endsAtCorruptRecord() throws IOException {
+		try (IngestLog log = open()) {
+			append(log, "first", "second", "third");
+		}
+		// Corrupt the contents of the second record, which starts at 13.
+		overwrite(0, 13 + 8, new byte[] {'X'});
+		try (IngestLog log = open()) {
+			assertEquals(Arrays.asList("first"), read(log, 0));
+			// The rest of the segment was cleared, so a new record replaces the
+			// corrupt ones.
+			append(log, "replacement");
+		}
+		try (IngestLog log = open()) {
+			assertEquals(Arrays.asList("first", "replacement"), read(log, 0));
+		}
+	}
+
+	@Test
+	public void endsAtIncompleteRecord() throws IOException {
+		try (IngestLog log = open()) {
+			append(log, "first", "0123456789012345678901234567890123456789");
+		}
+		// A record in a new segment whose length runs past the end of the
+		// segment, and one in the segment after it, which must be discarded.
+		overwrite(1, 0, ByteBuffer.allocate(4).putInt(1000).array());
+		overwrite(2, 0, ByteBuffer.allocate(4).putInt(1).array());
+		try (IngestLog log = open()) {
+			assertEquals(Arrays.asList("first",
+				"0123456789012345678901234567890123456789"), read(log, 0));
+		}
+		assertEquals(Arrays.asList(String.format("%020d.segment", 0),
+			String.format("%020d.segment", 1)), segmentFiles());
+	}
+
+	@Test
+	public void resumesFromCheckpoint() throws IOException {
+		try (IngestLog log = open()) {
+			append(log, "segment 0, record 0", "segment 0, record 1");
+			append(log, "segment 1, record 0");
+			assertEquals(0, log.checkpoint());
+			// Every record in segment 0 has been consumed, so it is deleted.
+			log.checkpoint(SEGMENT_SIZE);
+			assertEquals(1, segmentFiles().size());
+		}
+		try (IngestLog log = open()) {
+			assertEquals(SEGMENT_SIZE, log.checkpoint());
+			assertEquals(Arrays.asList("segment 1, record 0"),
+				read(log, log.checkpoint()));
+		}
+	}
+
+	@Test
+	public void ignoresUnreadableCheckpoint() throws IOException {
+		try (IngestLog log = open()) {
+			append(log, "first", "second");
+			log.checkpoint(13);
+		}
+		// A crash left the checkpoint file empty, so every record is read again.
+		Files.write(directory().resolve("checkpoint"), new byte[0]);
+		try (IngestLog log = open()) {
+			assertEquals(0, log.checkpoint());
+			assertEquals(Arrays.asList("first", "second"), read(log, 0));
+		}
+	}
+
+	@Test
+	public void readsOnlySyncedRecords() throws IOException {
+		try (IngestLog log = open()) {
+			long synced = append(log, "synced");
+			long unsynced = log.append("unsynced".getBytes(StandardCharsets.UTF_8));
+			assertEquals(Arrays.asList("synced"), read(log, 0));
+			log.sync(unsynced);
+			assertEquals(Arrays.asList("unsynced"), read(log, synced));
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.opendatakit.thin.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+	@Test
+	public void linearBuckets() {
+		for (int value = 0; value < 32; value++) {
+			assertEquals(value, Histogram.bucket(value));
+			assertEquals(value, Histogram.highestValue(value));
+		}
+	}
+
+	@Test
+	public void bucketBoundaries() {
+		// Every bucket starts just after the previous one ends, up to the bucket
+		// of Long.MAX_VALUE, which is the last.
+		int last = Histogram.bucket(Long.MAX_VALUE);
+		assertEquals(959, last);
+		assertEquals(Long.MAX_VALUE, Histogram.highestValue(last));
+		for (int bucket = 0; bucket < last; bucket++) {
+			long highest = Histogram.highestValue(bucket);
+			assertEquals(bucket, Histogram.bucket(highest));
+			assertEquals(bucket + 1, Histogram.bucket(highest + 1));
+		}
+	}
+
+	@Test
+	public void relativeWidth() {
+		// Above the linear buckets, a bucket is at most 1/16 of its lowest value
+		// wide.
+		for (int bucket = 32; bucket <= 959; bucket++) {
+			long lowest = Histogram.highestValue(bucket - 1) + 1;
+			long width = Histogram.highestValue(bucket) - lowest + 1;
+			assertTrue(bucket + ": " + width, width <= lowest / 16);
+		}
+		assertEquals(32, Histogram.bucket(32));
+		assertEquals(33, Histogram.bucket(34));
+		assertEquals(47, Histogram.bucket(63));
+		assertEquals(48, Histogram.bucket(64));
+		assertEquals(48, Histogram.bucket(67));
+		assertEquals(49, Histogram.bucket(68));
+	}
+
+	@Test
+	public void statistics() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.percentile(50));
+		for (int value = 1; value <= 1000; value++)
+			histogram.record(value);
+		histogram.record(-5);
+		assertEquals(1001, histogram.count());
+		assertEquals(500500, histogram.sum());
+		assertEquals(1000, histogram.max());
+		assertEquals(0, histogram.percentile(0));
+		assertEquals(1000, histogram.percentile(100));
+		// The 501st value, 500, is in the bucket [496, 511].
+		assertEquals(511, histogram.percentile(50));
+		// The 991st value, 990, is in the bucket [960, 991].
+		assertEquals(991, histogram.percentile(99));
+		// The largest value of the top bucket is capped at the maximum.
+		assertEquals(1000, histogram.percentile(99.9));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPercentile() {
+		new Histogram().percentile(101);
+	}
+}
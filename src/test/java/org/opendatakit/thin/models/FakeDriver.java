@@ -0,0 +1,224 @@
+package org.opendatakit.thin.models;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/*
+FakeDriver is the base of the JDBC drivers that stand in for the database in
+tests and benchmarks, so that AbstractModel, Sql2o, and the pool run unchanged
+without one. A subclass accepts URLs that start with its prefix and supplies
+the statements of its connections (see statement()). Every other JDBC object is
+a proxy built by stub(), whose methods return a default value unless its
+handler returns something else.
+
+A connection keeps track of its auto-commit and read-only modes, because the
+pool checks them, and ignores everything else, including transactions.
+ */
+public abstract class FakeDriver implements Driver {
+	private static final Set<Class<?>> REGISTERED = new HashSet<>();
+
+	private final String prefix;
+
+	protected FakeDriver(String prefix) {
+		this.prefix = prefix;
+	}
+
+	// Registers a driver with DriverManager, unless a driver of the same class is
+	// already registered.
+	protected static void register(FakeDriver driver) {
+		synchronized (REGISTERED) {
+			if (!REGISTERED.add(driver.getClass()))
+				return;
+			try {
+				DriverManager.registerDriver(driver);
+			}
+			catch (SQLException e) {
+				REGISTERED.remove(driver.getClass());
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	// Returns a statement that executes sql.
+	protected abstract PreparedStatement statement(String sql);
+
+	/* ------------------------------------------------------------------------ */
+				/* stubs */
+
+	// Returns the default value of a primitive type, so that a stub never returns
+	// null where a primitive is expected.
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return false;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		if (type == short.class)
+			return (short) 0;
+		if (type == byte.class)
+			return (byte) 0;
+		if (type == float.class)
+			return 0f;
+		if (type == double.class)
+			return 0d;
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static <T> T stub(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(FakeDriver.class.getClassLoader(),
+			new Class<?>[] {type}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "toString":
+						return type.getSimpleName() + " stub";
+					case "isWrapperFor":
+						return false;
+					default:
+						Object result = handler.invoke(proxy, method, args);
+						return result != null ? result :
+							defaultValue(method.getReturnType());
+				}
+			});
+	}
+
+	// The metadata of a result set, whose column types are those of the values
+	// in its first row
+	private static ResultSetMetaData metaData(String[] columns,
+		List<Object[]> rows) {
+		return stub(ResultSetMetaData.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getColumnCount":
+					return columns.length;
+				case "getColumnLabel":
+				case "getColumnName":
+					return columns[(int) args[0] - 1];
+				case "getColumnType":
+				case "getColumnClassName": {
+					Object value =
+						rows.isEmpty() ? null : rows.get(0)[(int) args[0] - 1];
+					if (method.getName().equals("getColumnClassName"))
+						return (value != null ? value.getClass() : Object.class).getName();
+					return value instanceof Long ? Types.BIGINT : Types.VARCHAR;
+				}
+				default:
+					return null;
+			}
+		});
+	}
+
+	// Returns a result set of the specified rows. A column may be read by index
+	// or by label.
+	protected static ResultSet resultSet(String[] columns, List<Object[]> rows) {
+		int[] row = {-1};
+		boolean[] wasNull = {false};
+		return stub(ResultSet.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "next":
+					return ++row[0] < rows.size();
+				case "getObject":
+				case "getLong":
+				case "getString": {
+					int index = args[0] instanceof String ?
+						Arrays.asList(columns).indexOf(args[0]) : (int) args[0] - 1;
+					Object value = rows.get(row[0])[index];
+					wasNull[0] = value == null;
+					return value;
+				}
+				case "wasNull":
+					return wasNull[0];
+				case "getMetaData":
+					return metaData(columns, rows);
+				default:
+					return null;
+			}
+		});
+	}
+
+	private Connection connection() {
+		boolean[] state = {true, false};
+		return stub(Connection.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "prepareStatement":
+					return statement((String) args[0]);
+				case "createStatement":
+					return stub(Statement.class, (p, m, a) -> null);
+				case "isValid":
+					return true;
+				case "getAutoCommit":
+					return state[0];
+				case "setAutoCommit":
+					state[0] = (boolean) args[0];
+					return null;
+				case "isReadOnly":
+					return state[1];
+				case "setReadOnly":
+					state[1] = (boolean) args[0];
+					return null;
+				case "getTransactionIsolation":
+					return Connection.TRANSACTION_READ_COMMITTED;
+				default:
+					return null;
+			}
+		});
+	}
+
+	/* ------------------------------------------------------------------------ */
+				/* Driver */
+
+	@Override
+	public Connection connect(String url, Properties info) {
+		return acceptsURL(url) ? connection() : null;
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(prefix);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
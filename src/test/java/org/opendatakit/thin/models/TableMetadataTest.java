@@ -0,0 +1,124 @@
+package org.opendatakit.thin.models;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TableMetadataTest {
+	private static final TableMetadata SUBMISSIONS =
+		new TableMetadata("submissions", "formId", "instanceId", "xml", "version");
+	private static final TableMetadata NOTES =
+		new TableMetadata("notes", "text");
+
+	private static long mask(TableMetadata table, String... columns) {
+		return table.mask(Arrays.asList(columns));
+	}
+
+	// Checks the parameters of a template: the column of each parameter and the
+	// ordinal of each value parameter.
+	private static void assertParameters(TableMetadata table,
+		SqlTemplate template, int valueCount, String... columns) {
+		assertEquals(valueCount, template.valueCount());
+		assertEquals(columns.length, template.parameterCount());
+		for (int i = 0; i < columns.length; i++) {
+			assertEquals(columns[i], template.parameter(i));
+			if (i < valueCount)
+				assertEquals(table.ordinal(columns[i]), template.ordinal(i));
+		}
+	}
+
+	@Test
+	public void columns() {
+		assertEquals(Arrays.asList("formId", "instanceId", "xml", "version", "id"),
+			Arrays.asList(SUBMISSIONS.columnNames().toArray()));
+		assertEquals(4, SUBMISSIONS.idOrdinal());
+		assertEquals(3, SUBMISSIONS.versionOrdinal());
+		assertEquals(-1, NOTES.versionOrdinal());
+		assertEquals(mask(SUBMISSIONS, "formId", "instanceId", "xml"),
+			SUBMISSIONS.writableColumns());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownColumn() {
+		SUBMISSIONS.ordinal("missing");
+	}
+
+	@Test
+	public void insert() {
+		SqlTemplate template =
+			SUBMISSIONS.insert(mask(SUBMISSIONS, "xml", "formId"));
+		assertEquals("INSERT INTO submissions (formId, xml) VALUES (?, ?) " +
+			"ON CONFLICT DO NOTHING RETURNING id, version", template.sql());
+		assertParameters(SUBMISSIONS, template, 2, "formId", "xml");
+
+		// id and version are never written.
+		template = SUBMISSIONS.insert(mask(SUBMISSIONS, "id", "version"));
+		assertEquals("INSERT INTO submissions DEFAULT VALUES " +
+			"ON CONFLICT DO NOTHING RETURNING id, version", template.sql());
+		assertParameters(SUBMISSIONS, template, 0);
+
+		assertEquals("INSERT INTO notes (text) VALUES (?) " +
+			"ON CONFLICT DO NOTHING RETURNING id",
+			NOTES.insert(NOTES.writableColumns()).sql());
+	}
+
+	@Test
+	public void insertAll() {
+		SqlTemplate template = SUBMISSIONS.insertAll();
+		assertEquals("INSERT INTO submissions (formId, instanceId, xml) " +
+			"VALUES (?, ?, ?) ON CONFLICT DO NOTHING", template.sql());
+		assertParameters(SUBMISSIONS, template, 3, "formId", "instanceId", "xml");
+	}
+
+	@Test
+	public void update() {
+		SqlTemplate template = SUBMISSIONS.update(mask(SUBMISSIONS, "xml"),
+			mask(SUBMISSIONS, "formId", "instanceId"));
+		assertEquals("UPDATE submissions SET xml = ?, version = version + 1 " +
+			"WHERE formId = ? AND instanceId = ? RETURNING id, version",
+			template.sql());
+		assertParameters(SUBMISSIONS, template, 1, "xml", "formId", "instanceId");
+
+		template = SUBMISSIONS.update(0, mask(SUBMISSIONS, "id"));
+		assertEquals("UPDATE submissions SET version = version + 1 " +
+			"WHERE id = ? RETURNING id, version", template.sql());
+		assertParameters(SUBMISSIONS, template, 0, "id");
+
+		// An unversioned table without dirty columns still sets a column.
+		assertEquals("UPDATE notes SET id = id WHERE id = ? RETURNING id",
+			NOTES.update(0, mask(NOTES, "id")).sql());
+	}
+
+	@Test
+	public void upsert() {
+		SqlTemplate template = SUBMISSIONS.upsert(SUBMISSIONS.writableColumns(),
+			mask(SUBMISSIONS, "formId", "instanceId"));
+		assertEquals("INSERT INTO submissions (formId, instanceId, xml) " +
+			"VALUES (?, ?, ?) ON CONFLICT (formId, instanceId) DO UPDATE SET " +
+			"xml = EXCLUDED.xml, version = submissions.version + 1 " +
+			"RETURNING id, version", template.sql());
+		// The key columns appear only in the conflict target.
+		assertParameters(SUBMISSIONS, template, 3, "formId", "instanceId", "xml");
+
+		assertEquals("INSERT INTO notes (text) VALUES (?) ON CONFLICT (text) " +
+			"DO UPDATE SET text = EXCLUDED.text RETURNING id",
+			NOTES.upsert(NOTES.writableColumns(), mask(NOTES, "text")).sql());
+	}
+
+	@Test
+	public void templatesAreCached() {
+		long columns = mask(SUBMISSIONS, "xml");
+		assertSame(SUBMISSIONS.insert(columns), SUBMISSIONS.insert(columns));
+		// Columns that are not writable do not make a different template.
+		assertSame(SUBMISSIONS.insert(columns),
+			SUBMISSIONS.insert(columns | mask(SUBMISSIONS, "version")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void updateWithoutKeys() {
+		SUBMISSIONS.update(SUBMISSIONS.writableColumns(), 0);
+	}
+}
@@ -0,0 +1,75 @@
+package org.opendatakit.thin.xml;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class XmlDocumentsTest {
+	private static void assertSplits(String text, String... documents) {
+		assertEquals(Arrays.asList(documents), XmlDocuments.split(text));
+	}
+
+	@Test
+	public void concatenated() {
+		assertSplits("<a>1</a><b>2</b>", "<a>1</a>", "<b>2</b>");
+		assertSplits("  <a>1</a>\n\n<b/>\t", "<a>1</a>", "<b/>");
+		assertSplits("<a><a><b/></a></a><c/>", "<a><a><b/></a></a>", "<c/>");
+		assertEquals(Collections.emptyList(), XmlDocuments.split(" \n "));
+	}
+
+	@Test
+	public void prologs() {
+		assertSplits(
+			"<?xml version=\"1.0\"?><!-- one --><a/>" +
+				"<?xml version=\"1.0\"?>\n<?pi x?><!-- two --><b>2</b>",
+			"<?xml version=\"1.0\"?><!-- one --><a/>",
+			"<?xml version=\"1.0\"?>\n<?pi x?><!-- two --><b>2</b>");
+		assertSplits(
+			"<!DOCTYPE a [<!ELEMENT a (#PCDATA)> <!ENTITY e \"<b>\">]><a>&e;</a>" +
+				"<!DOCTYPE b><b/>",
+			"<!DOCTYPE a [<!ELEMENT a (#PCDATA)> <!ENTITY e \"<b>\">]><a>&e;</a>",
+			"<!DOCTYPE b><b/>");
+	}
+
+	@Test
+	public void markupInContent() {
+		// Tags inside comments, CDATA sections, processing instructions, and
+		// attribute values do not open or close elements.
+		assertSplits(
+			"<a><!-- </a> --><![CDATA[</a><a>]]><?pi </a>?>" +
+				"<b title=\"</a>\" alt='>'/></a><c/>",
+			"<a><!-- </a> --><![CDATA[</a><a>]]><?pi </a>?>" +
+				"<b title=\"</a>\" alt='>'/></a>",
+			"<c/>");
+	}
+
+	@Test
+	public void trailingMisc() {
+		// Comments and processing instructions after the last document belong to
+		// it, while those between documents belong to the next one.
+		assertSplits("<a/><!-- one --><b/> <!-- two -->\n<?pi x?>\n",
+			"<a/>", "<!-- one --><b/> <!-- two -->\n<?pi x?>\n");
+		// An XML declaration starts a new document, which is incomplete.
+		assertSplits("<a/><?xml version=\"1.0\"?>", "<a/>",
+			"<?xml version=\"1.0\"?>");
+		assertSplits("<!-- alone -->", "<!-- alone -->");
+	}
+
+	@Test
+	public void incompleteDocuments() {
+		// Text after the last complete document is returned, so that it fails to
+		// parse.
+		assertSplits("<a/><b>", "<a/>", "<b>");
+		assertSplits("<a/><b", "<a/>", "<b");
+		assertSplits("<a/>text", "<a/>", "text");
+		assertSplits("<a/><!-- unclosed", "<a/>", "<!-- unclosed");
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullText() {
+		XmlDocuments.split(null);
+	}
+}